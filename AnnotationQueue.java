@@ -0,0 +1,179 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Annotation work queue. Variants labelled Annotate are leased to workers by moving them to Queued with a lease expiry;
+ * expired leases are handed out again before new work. Leases are tracked in memory so reclaiming never scans the Queued label
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class AnnotationQueue {
+
+    private static final TreeMap<Long, ArrayList<Long>> leases = new TreeMap<>();
+    private static GraphDatabaseService cachedGraphDb = null;
+
+    /**
+     * Leases up to count variants. Reclaimed leases are served first
+     * @return Returns leased variant node ids in genomic order
+     */
+    static synchronized List<Long> lease(int count, long leaseMillis, GraphDatabaseService graphDb){
+        ArrayList<Node> variantNodes = new ArrayList<>();
+        ArrayList<Long> reclaimedExpiries = new ArrayList<>();
+        long now = new Date().getTime();
+        long leaseExpiry = now + leaseMillis;
+
+        initialise(graphDb);
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            //reclaim expired leases
+            for (Map.Entry<Long, ArrayList<Long>> entry : leases.headMap(now, true).entrySet()){
+                if (variantNodes.size() >= count){
+                    break;
+                }
+
+                Iterator<Long> iter = entry.getValue().iterator();
+
+                while (iter.hasNext() && variantNodes.size() < count){
+                    Node variantNode = getLeasedVariantNode(tx, iter.next(), entry.getKey(), graphDb);
+
+                    if (variantNode != null){
+                        variantNodes.add(variantNode);
+                    }
+
+                    iter.remove();
+                }
+
+                if (entry.getValue().isEmpty()){
+                    reclaimedExpiries.add(entry.getKey());
+                }
+            }
+
+            //then new work
+            if (variantNodes.size() < count){
+                try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.annotate)) {
+
+                    while (iter.hasNext() && variantNodes.size() < count) {
+                        Node variantNode = iter.next();
+
+                        tx.acquireWriteLock(variantNode);
+
+                        //annotated since it was found
+                        if (!variantNode.hasLabel(Labels.annotate)){
+                            continue;
+                        }
+
+                        variantNode.removeLabel(Labels.annotate);
+                        variantNodes.add(variantNode);
+                    }
+
+                }
+            }
+
+            for (Node variantNode : variantNodes){
+                variantNode.addLabel(Labels.queued);
+                variantNode.setProperty("leaseExpiry", leaseExpiry);
+            }
+
+            tx.success();
+        } catch (RuntimeException e) {
+            //reclaimed nodes are still queued in the graph
+            cachedGraphDb = null;
+            throw e;
+        }
+
+        for (Long expiry : reclaimedExpiries){
+            leases.remove(expiry);
+        }
+
+        ArrayList<Long> variantNodeIds = new ArrayList<>();
+
+        for (Node variantNode : variantNodes){
+            variantNodeIds.add(variantNode.getId());
+            addLease(leaseExpiry, variantNode.getId());
+        }
+
+        return sortByVariantKey(variantNodeIds, graphDb);
+    }
+
+    /**
+     * Locks the variant before checking the lease so an annotation write-back committing in between cannot be missed
+     * @return Returns the locked variant node if it is still queued under this lease, otherwise null
+     */
+    private static Node getLeasedVariantNode(Transaction tx, long variantNodeId, long leaseExpiry, GraphDatabaseService graphDb){
+        try {
+            Node variantNode = graphDb.getNodeById(variantNodeId);
+
+            tx.acquireWriteLock(variantNode);
+
+            if (variantNode.hasLabel(Labels.queued) && variantNode.getProperty("leaseExpiry", 0L).equals(leaseExpiry)){
+                return variantNode;
+            }
+
+        } catch (NotFoundException e) {
+            //deleted
+        }
+
+        return null;
+    }
+
+    private static List<Long> sortByVariantKey(List<Long> variantNodeIds, GraphDatabaseService graphDb){
+        final HashMap<Long, VariantKey> variantKeys = new HashMap<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Long variantNodeId : variantNodeIds){
+                variantKeys.put(variantNodeId, VariantKey.parse((String) graphDb.getNodeById(variantNodeId).getProperty("variantId")));
+            }
+        }
+
+        Collections.sort(variantNodeIds, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return variantKeys.get(a).compareTo(variantKeys.get(b));
+            }
+        });
+
+        return variantNodeIds;
+    }
+
+    private static void addLease(long leaseExpiry, long variantNodeId){
+        ArrayList<Long> variantNodeIds = leases.get(leaseExpiry);
+
+        if (variantNodeIds == null){
+            variantNodeIds = new ArrayList<>();
+            leases.put(leaseExpiry, variantNodeIds);
+        }
+
+        variantNodeIds.add(variantNodeId);
+    }
+
+    /**
+     * Rebuilds outstanding leases from the graph once per database
+     */
+    private static void initialise(GraphDatabaseService graphDb){
+        if (cachedGraphDb == graphDb){
+            return;
+        }
+
+        leases.clear();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.queued)) {
+
+                while (iter.hasNext()) {
+                    Node variantNode = iter.next();
+                    addLease((long) variantNode.getProperty("leaseExpiry", 0L), variantNode.getId());
+                }
+
+            }
+        }
+
+        cachedGraphDb = graphDb;
+    }
+
+}
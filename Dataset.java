@@ -1,6 +1,6 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
+import nhs.genetics.cardiff.framework.GenomeVariant;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -10,14 +10,24 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.*;
 import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A class for working with datasets
@@ -31,68 +41,322 @@ public class Dataset {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Set<String> loadingDatasetKeys = Collections.synchronizedSet(new HashSet<String>());
 
-    public Dataset(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public Dataset(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
+    }
+
+    /**
+     * Adds a new dataset and its genotypes from a stream. Lines are NDJSON {variantId, inheritance} or tab-separated variantId inheritance;
+     * inheritance is het|hom or a diploid GT (0/1, 1/1). Unknown variants are created and queued for annotation. The dataset is labelled
+     * Loading until the stream is fully loaded and is deleted if the load fails, so a failed load can be retried
+     * @param inputStream genotype records
+     * @param batchSize genotypes per transaction
+     * @return {het, hom, variantsCreated}
+     */
+    @POST
+    @Path("/add/bulk")
+    @Consumes({"application/x-ndjson", MediaType.TEXT_PLAIN})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response addBulk(final InputStream inputStream,
+                            @QueryParam("sampleId") final String sampleId,
+                            @QueryParam("worklistId") final String worklistId,
+                            @QueryParam("seqId") final String seqId,
+                            @QueryParam("batchSize") @DefaultValue("10000") final int batchSize) {
+
+        String loadingDatasetKey = null;
+
+        try {
+
+            if (sampleId == null || worklistId == null || seqId == null){
+                throw new IllegalArgumentException("sampleId, worklistId and seqId are required");
+            }
+            if (batchSize < 1){
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+
+            String datasetKey = Framework.getDatasetKey(sampleId, worklistId, seqId);
+
+            if (!loadingDatasetKeys.add(datasetKey)){
+                throw new NodeAlreadyExists("Dataset " + datasetKey + " is already loading");
+            }
+
+            loadingDatasetKey = datasetKey;
+
+            Node sampleNode = Framework.matchOrCreateUniqueNode(graphDb, Labels.sample, "sampleId", sampleId);
+            Node datasetNode, interruptedDatasetNode;
+
+            try (Transaction tx = graphDb.beginTx()) {
+                interruptedDatasetNode = graphDb.findNode(Labels.dataset, "datasetKey", datasetKey);
+
+                if (interruptedDatasetNode != null && !interruptedDatasetNode.hasLabel(Labels.loading)){
+                    throw new NodeAlreadyExists("Dataset " + datasetKey + " already exists");
+                }
+            }
+
+            //left by a load that did not finish, e.g. on restart
+            if (interruptedDatasetNode != null){
+                deleteDataset(interruptedDatasetNode, batchSize);
+            }
+
+            try (Transaction tx = graphDb.beginTx()) {
+                datasetNode = graphDb.createNode(Labels.dataset, Labels.loading);
+                datasetNode.setProperty("worklistId", worklistId);
+                datasetNode.setProperty("seqId", seqId);
+                datasetNode.setProperty("datasetKey", datasetKey);
+
+                sampleNode.createRelationshipTo(datasetNode, Relationships.hasData);
+
+                tx.success();
+            }
+
+            HashMap<String, Integer> counts = new HashMap<>();
+
+            try {
+                loadGenotypes(datasetNode, inputStream, batchSize, counts);
+
+                try (Transaction tx = graphDb.beginTx()) {
+                    datasetNode.removeLabel(Labels.loading);
+                    tx.success();
+                }
+            } catch (Exception e) {
+                try {
+                    deleteDataset(datasetNode, batchSize);
+                } catch (Exception deleteException) {
+                    //still labelled Loading so the next attempt removes it
+                    log.error("Could not remove dataset " + datasetKey + ": " + deleteException.getMessage());
+                }
+
+                throw e;
+            }
+
+            return Response.ok().entity(objectMapper.writeValueAsString(counts)).type(MediaType.APPLICATION_JSON).build();
+
+        } catch (NodeAlreadyExists e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.CONFLICT)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } finally {
+            if (loadingDatasetKey != null){
+                loadingDatasetKeys.remove(loadingDatasetKey);
+            }
+        }
+
+    }
+
+    private void loadGenotypes(Node datasetNode, InputStream inputStream, int batchSize, HashMap<String, Integer> counts) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        LinkedHashMap<String, RelationshipType> genotypes = new LinkedHashMap<>();
+        HashMap<String, RelationshipType> loadedGenotypes = new HashMap<>();
+        String line;
+        int lineNumber = 0;
+
+        counts.put("het", 0);
+        counts.put("hom", 0);
+        counts.put("variantsCreated", 0);
+
+        while ((line = bufferedReader.readLine()) != null){
+            lineNumber++;
+
+            if (line.trim().equals("") || line.startsWith("#")){
+                continue;
+            }
+
+            String variantId;
+            RelationshipType inheritance;
+
+            try {
+                String inheritanceField;
+
+                if (line.startsWith("{")){
+                    JsonNode jsonNode = objectMapper.readTree(line);
+                    variantId = jsonNode.get("variantId").asText();
+                    inheritanceField = jsonNode.get("inheritance").asText();
+                } else {
+                    String[] fields = line.split("\t");
+                    variantId = fields[0];
+                    inheritanceField = fields[1];
+                }
+
+                GenomeVariant genomeVariant = new GenomeVariant(variantId);
+                genomeVariant.convertToMinimalRepresentation();
+
+                variantId = genomeVariant.toString();
+                inheritance = getInheritanceRelationshipType(inheritanceField.trim());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Could not parse line " + lineNumber + ": " + e.getMessage());
+            }
+
+            //repeated lines in any batch would otherwise create parallel genotype relationships
+            RelationshipType previousInheritance = loadedGenotypes.put(variantId, inheritance);
+
+            if (previousInheritance != null){
+                if (previousInheritance != inheritance){
+                    throw new IllegalArgumentException("Conflicting genotypes for " + variantId + " at line " + lineNumber);
+                }
+
+                continue;
+            }
+
+            genotypes.put(variantId, inheritance);
+
+            if (genotypes.size() >= batchSize){
+                addGenotypeBatch(datasetNode, genotypes, counts);
+            }
+
+        }
+
+        addGenotypeBatch(datasetNode, genotypes, counts);
+    }
+
+    /**
+     * Deletes a dataset that failed to load with its relationships, in batches
+     */
+    private void deleteDataset(Node datasetNode, int batchSize){
+        boolean deleted = false;
+
+        while (!deleted){
+            try (Transaction tx = graphDb.beginTx()) {
+                int i = 0;
+
+                for (Relationship relationship : datasetNode.getRelationships()){
+                    if (i++ >= batchSize){
+                        break;
+                    }
+
+                    relationship.delete();
+                }
+
+                if (i <= batchSize){
+                    datasetNode.delete();
+                    deleted = true;
+                }
+
+                tx.success();
+            }
+        }
+    }
+
+    private static RelationshipType getInheritanceRelationshipType(String inheritance){
+        switch (inheritance) {
+            case "het":
+            case "0/1":
+            case "0|1":
+            case "1/0":
+            case "1|0":
+                return Relationships.hasHetVariant;
+            case "hom":
+            case "1/1":
+            case "1|1":
+                return Relationships.hasHomVariant;
+            default:
+                throw new IllegalArgumentException("Unknown inheritance: " + inheritance);
+        }
+    }
+
+    private void addGenotypeBatch(Node datasetNode, LinkedHashMap<String, RelationshipType> genotypes, HashMap<String, Integer> counts){
+        int variantsCreated = 0;
+
+        if (genotypes.isEmpty()){
+            return;
+        }
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (Map.Entry<String, RelationshipType> genotype : genotypes.entrySet()){
+                Node variantNode = VariantKeyIndex.findVariantNode(genotype.getKey(), graphDb);
+
+                if (variantNode == null){
+                    variantNode = Variant.createVariantNode(genotype.getKey(), graphDb);
+                    variantsCreated++;
+                }
+
+                datasetNode.createRelationshipTo(variantNode, genotype.getValue());
+
+                String key = genotype.getValue() == Relationships.hasHetVariant ? "het" : "hom";
+                counts.put(key, counts.get(key) + 1);
+            }
+
+            tx.success();
+        }
+
+        counts.put("variantsCreated", counts.get("variantsCreated") + variantsCreated);
+
+        genotypes.clear();
     }
 
     /**
      * @return Returns all QC passing datasets
+     * @param limit page size, cursor continuation token from the previous page, fields sample:key,key;dataset:key
      */
     @GET
     @Path("/qc/passed")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getQcPassed() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response getQcPassed(@QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
+            final long after = Framework.decodeCursor(cursor, limit);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
-                    jg.writeStartArray();
-
-                    try (Transaction tx = graphDb.beginTx()) {
-                        try (ResourceIterator<Node> datasetNodes = graphDb.findNodes(Labels.dataset)) {
-
-                            while (datasetNodes.hasNext()) {
-                                Node datasetNode = datasetNodes.next();
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                                //check analysis has passed QC
-                                Node lastEventNode = Event.getLastUserEventNode(datasetNode, graphDb);
+                    String nextCursor;
 
-                                if (lastEventNode.getId() != datasetNode.getId()){
-                                    Event.UserEventStatus status = Event.getUserEventStatus(lastEventNode, graphDb);
+                    format.writeStartList(limit != null, jg);
 
-                                    if (status == Event.UserEventStatus.ACTIVE && (boolean) lastEventNode.getProperty("passOrFail")){
-                                        Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+                    try (Transaction tx = graphDb.beginTx()) {
 
-                                        jg.writeStartObject();
+                        //QC passing datasets are cached
+                        List<Long> datasetNodeIds = Framework.getPage(QualityControlCache.getQcPassDatasetNodeIds(graphDb), after, limit);
 
-                                        //write sample
-                                        jg.writeObjectFieldStart("sample");
-                                        Framework.writeNodeProperties(sampleNode.getId(), sampleNode.getAllProperties(), sampleNode.getLabels(), jg);
-                                        jg.writeEndObject();
+                        for (Long datasetNodeId : datasetNodeIds) {
+                            Node datasetNode = graphDb.getNodeById(datasetNodeId);
+                            Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
 
-                                        //write dataset
-                                        jg.writeObjectFieldStart("dataset");
-                                        Framework.writeNodeProperties(datasetNode.getId(), datasetNode.getAllProperties(), datasetNode.getLabels(), jg);
-                                        jg.writeEndObject();
+                            jg.writeStartObject();
 
-                                        jg.writeEndObject();
-                                    }
+                            //write sample
+                            jg.writeObjectFieldStart("sample");
+                            Framework.writeNodeProperties(sampleNode, projection.get("sample"), jg);
+                            jg.writeEndObject();
 
-                                }
-                            }
+                            //write dataset
+                            jg.writeObjectFieldStart("dataset");
+                            Framework.writeNodeProperties(datasetNode, projection.get("dataset"), jg);
+                            jg.writeEndObject();
 
+                            jg.writeEndObject();
+                            format.writeEndRecord(jg);
                         }
+
+                        nextCursor = Framework.getNextCursor(datasetNodeIds, limit);
                     }
 
-                    jg.writeEndArray();
+                    format.writeEndList(limit != null, nextCursor, jg);
 
                     jg.flush();
                     jg.close();
@@ -100,8 +364,14 @@ public class Dataset {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return format.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -114,22 +384,25 @@ public class Dataset {
 
     /**
      * @return Returns all datasets requiring QC
+     * @param fields sample:key,key;dataset:key
      */
     @GET
     @Path("/qc/pending")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getQcPending() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response getQcPending(@QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                    jg.writeStartArray();
+                    format.writeStartList(false, jg);
 
                     try (Transaction tx = graphDb.beginTx()) {
                         try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.dataset)){
@@ -146,14 +419,15 @@ public class Dataset {
                                     Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
 
                                     jg.writeObjectFieldStart("sample");
-                                    Framework.writeNodeProperties(sampleNode.getId(), sampleNode.getAllProperties(), sampleNode.getLabels(), jg);
+                                    Framework.writeNodeProperties(sampleNode, projection.get("sample"), jg);
                                     jg.writeEndObject();
 
                                     jg.writeObjectFieldStart("dataset");
-                                    Framework.writeNodeProperties(datasetNode.getId(), datasetNode.getAllProperties(), datasetNode.getLabels(), jg);
+                                    Framework.writeNodeProperties(datasetNode, projection.get("dataset"), jg);
                                     jg.writeEndObject();
 
                                     jg.writeEndObject();
+                                    format.writeEndRecord(jg);
                                 }
 
                             }
@@ -161,7 +435,7 @@ public class Dataset {
                         }
                     }
 
-                    jg.writeEndArray();
+                    format.writeEndList(false, null, jg);
 
                     jg.flush();
                     jg.close();
@@ -170,7 +444,7 @@ public class Dataset {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return format.ok(stream).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -196,40 +470,29 @@ public class Dataset {
         try {
 
             JsonNode jsonNode = objectMapper.readTree(json);
-            Node datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
-
-            //check dataset does not already have outstanding auths
-            Node lastEventNode = Event.getLastUserEventNode(datasetNode, graphDb);
+            Node datasetNode;
 
-            if (lastEventNode.getId() != datasetNode.getId()){
-                Event.UserEventStatus status = Event.getUserEventStatus(lastEventNode, graphDb);
+            try (Transaction tx = graphDb.beginTx()) {
+                datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
+            }
 
-                if (status == Event.UserEventStatus.PENDING_AUTH){
-                    throw new IllegalArgumentException("Cannot add QC result. Auth pending.");
-                }
+            //add properties
+            HashMap<String, Object> properties = new HashMap<>();
+            properties.put("passOrFail", jsonNode.get("passOrFail").asBoolean());
 
+            if (jsonNode.has("evidence") && !jsonNode.get("evidence").asText().equals("")) {
+                properties.put("evidence", jsonNode.get("evidence").asText());
             }
 
             //add event
-            try (Transaction tx = graphDb.beginTx()) {
-                Node newEventNode = graphDb.createNode(Labels.qualityControl);
-                Node userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
-
-                //add properties
-                newEventNode.setProperty("passOrFail", jsonNode.get("passOrFail").asBoolean());
-
-                if (jsonNode.has("evidence") && !jsonNode.get("evidence").asText().equals("")) {
-                    newEventNode.setProperty("evidence", jsonNode.get("evidence").asText());
-                }
-
-                Relationship addedByRelationship = newEventNode.createRelationshipTo(userNode, Relationships.addedBy);
-                addedByRelationship.setProperty("date", new Date().getTime());
-
-                lastEventNode.createRelationshipTo(newEventNode, Relationships.hasEvent);
+            Node userNode;
 
-                tx.success();
+            try (Transaction tx = graphDb.beginTx()) {
+                userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
             }
 
+            Event.addUserEvent(datasetNode, Labels.qualityControl, "QC result", properties, userNode, graphDb);
+
             return Response
                     .status(Response.Status.OK)
                     .build();
@@ -250,66 +513,79 @@ public class Dataset {
 
     }
 
+    static boolean isQcPass(Node datasetNode, GraphDatabaseService graphDb){
+        return QualityControlCache.isQcPass(datasetNode.getId(), graphDb);
+    }
+
+    /**
+     * @return Returns QC outcome of the latest authorised QC event. Must be called within a transaction
+     */
+    static boolean getQcPassFromGraph(Node datasetNode, GraphDatabaseService graphDb){
+        Node qcNode = Event.getLastActiveUserEventNode(datasetNode, graphDb);
+        return qcNode != null && (boolean) qcNode.getProperty("passOrFail");
+    }
+
     /**
      * @return Returns all datasets with pending QC requiring auth
+     * @param limit page size, cursor continuation token from the previous page, fields sample:key,key;dataset:key;qc:key;user:key
      */
     @GET
     @Path("/qc/pending/auth")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getQcPendingAuth() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response getQcPendingAuth(@QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
+            final long after = Framework.decodeCursor(cursor, limit);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
-                    jg.writeStartArray();
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                    try (Transaction tx = graphDb.beginTx()) {
-                        try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.qualityControl)){
+                    String nextCursor;
 
-                            while (iter.hasNext()) {
-                                Node qcNode = iter.next();
+                    format.writeStartList(limit != null, jg);
 
-                                if (Event.getUserEventStatus(qcNode, graphDb) == Event.UserEventStatus.PENDING_AUTH){
+                    try (Transaction tx = graphDb.beginTx()) {
+                        List<Long> qcNodeIds = Framework.getPage(Event.getPendingAuthEventNodeIds(Labels.qualityControl, graphDb), after, limit);
 
-                                    Relationship addedByRelationship = qcNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
+                        for (Long qcNodeId : qcNodeIds) {
+                            Node qcNode = graphDb.getNodeById(qcNodeId);
 
-                                    jg.writeStartObject();
+                            Relationship addedByRelationship = qcNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
 
-                                    Node datasetNode = Event.getSubjectNodeFromEventNode(qcNode, graphDb);
+                            jg.writeStartObject();
 
-                                    jg.writeObjectFieldStart("dataset");
-                                    Framework.writeNodeProperties(datasetNode.getId(), datasetNode.getAllProperties(), datasetNode.getLabels(), jg);
-                                    jg.writeEndObject();
-
-                                    Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
-
-                                    jg.writeObjectFieldStart("sample");
-                                    Framework.writeNodeProperties(sampleNode.getId(), sampleNode.getAllProperties(), sampleNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            Node datasetNode = Event.getSubjectNodeFromEventNode(qcNode, graphDb);
 
-                                    jg.writeObjectFieldStart("qc");
-                                    Framework.writeNodeProperties(qcNode.getId(), qcNode.getAllProperties(), qcNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            jg.writeObjectFieldStart("dataset");
+                            Framework.writeNodeProperties(datasetNode, projection.get("dataset"), jg);
+                            jg.writeEndObject();
 
-                                    Node addedByUserNode = addedByRelationship.getEndNode();
-                                    Event.writeAddedBy(addedByUserNode.getId(), addedByUserNode.getProperties("fullName", "email", "admin"), addedByUserNode.getLabels(), (long) addedByRelationship.getProperty("date"), jg);
+                            Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
 
-                                    jg.writeEndObject();
+                            jg.writeObjectFieldStart("sample");
+                            Framework.writeNodeProperties(sampleNode, projection.get("sample"), jg);
+                            jg.writeEndObject();
 
-                                }
+                            jg.writeObjectFieldStart("qc");
+                            Framework.writeNodeProperties(qcNode, projection.get("qc"), jg);
+                            jg.writeEndObject();
 
-                            }
+                            Event.writeAddedBy(addedByRelationship, projection.get("user"), jg);
 
+                            jg.writeEndObject();
+                            format.writeEndRecord(jg);
                         }
+
+                        nextCursor = Framework.getNextCursor(qcNodeIds, limit);
                     }
 
-                    jg.writeEndArray();
+                    format.writeEndList(limit != null, nextCursor, jg);
 
                     jg.flush();
                     jg.close();
@@ -318,8 +594,14 @@ public class Dataset {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return format.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
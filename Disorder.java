@@ -1,6 +1,5 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -10,6 +9,7 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -29,11 +29,13 @@ public class Disorder {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public Disorder(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public Disorder(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
@@ -43,7 +45,7 @@ public class Disorder {
     @POST
     @Path("/info")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
     public Response info(final String json) {
 
         try {
@@ -54,7 +56,7 @@ public class Disorder {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     jg.writeStartObject();
 
@@ -85,7 +87,7 @@ public class Disorder {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
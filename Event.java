@@ -15,8 +15,10 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class for working with user events
@@ -31,9 +33,23 @@ public class Event {
     private final GraphDatabaseService graphDb;
     private final Log log;
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String[] userFields = {"fullName", "email", "admin"};
+    private static final ReentrantLock[] subjectLocks = new ReentrantLock[256];
+
+    static {
+        for (int i = 0; i < subjectLocks.length; i++){
+            subjectLocks[i] = new ReentrantLock();
+        }
+    }
 
     enum UserEventStatus {
-        PENDING_AUTH, ACTIVE, REJECTED
+        PENDING_AUTH(Labels.pendingAuth), ACTIVE(Labels.active), REJECTED(Labels.rejected);
+
+        final Label label;
+
+        UserEventStatus(Label label){
+            this.label = label;
+        }
     }
 
     public Event(@Context GraphDatabaseService graphDb, @Context Log log){
@@ -68,10 +84,6 @@ public class Event {
 
             }
 
-            if (getUserEventStatus(eventNode, graphDb) != UserEventStatus.PENDING_AUTH) {
-                throw new IllegalArgumentException("Event has no pending authorisation");
-            }
-
             authUserEvent(eventNode, userNode, jsonNode.get("addOrRemove").asBoolean(), graphDb);
 
             return Response.status(Response.Status.OK).build();
@@ -82,6 +94,12 @@ public class Event {
                     .status(Response.Status.FORBIDDEN)
                     .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
                     .build();
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -92,161 +110,373 @@ public class Event {
 
     }
 
-    static void writeEventHistory(Node subjectNode, JsonGenerator jg, GraphDatabaseService graphDb) throws IOException {
+    /**
+     * Writes the subject's event chain as a history array, projecting events and users by fields. Must be called within a transaction
+     */
+    static void writeEventHistory(Node subjectNode, Map<String, String[]> fields, JsonGenerator jg, GraphDatabaseService graphDb) throws IOException {
         org.neo4j.graphdb.Path longestPath = null;
 
-        try (Transaction tx = graphDb.beginTx()) {
+        //get longest path
+        for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .relationships(Relationships.hasEvent, Direction.OUTGOING)
+                .traverse(subjectNode)) {
+            longestPath = path;
+        }
+
+        jg.writeArrayFieldStart("history");
 
-            //get longest path
-            for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .relationships(Relationships.hasEvent, Direction.OUTGOING)
-                    .traverse(subjectNode)) {
-                longestPath = path;
+        //loop over nodes in this path
+        for (Node eventNode : longestPath.nodes()) {
+            if (eventNode.getId() == subjectNode.getId()) continue;
+
+            UserEventStatus userEventStatus = null;
+
+            jg.writeStartObject();
+
+            Relationship addedByRelationship = eventNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
+            Relationship authorisedByRelationship = eventNode.getSingleRelationship(Relationships.authorisedBy, Direction.OUTGOING);
+            Relationship rejectedByRelationship = eventNode.getSingleRelationship(Relationships.rejectedBy, Direction.OUTGOING);
+
+            //write added by
+            writeAddedBy(addedByRelationship, fields.get("user"), jg);
+
+            if (authorisedByRelationship == null && rejectedByRelationship == null){
+                userEventStatus = UserEventStatus.PENDING_AUTH;
             }
 
-            jg.writeArrayFieldStart("history");
+            if (authorisedByRelationship != null && rejectedByRelationship == null){
+                userEventStatus = UserEventStatus.ACTIVE;
 
-            //loop over nodes in this path
-            for (Node eventNode : longestPath.nodes()) {
-                if (eventNode.getId() == subjectNode.getId()) continue;
+                writeAuthBy(authorisedByRelationship, fields.get("user"), jg);
+            }
 
-                UserEventStatus userEventStatus = null;
+            if (authorisedByRelationship == null && rejectedByRelationship != null){
+                userEventStatus = UserEventStatus.REJECTED;
 
-                jg.writeStartObject();
+                writeAuthBy(rejectedByRelationship, fields.get("user"), jg);
+            }
 
-                Relationship addedByRelationship = eventNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
-                Relationship authorisedByRelationship = eventNode.getSingleRelationship(Relationships.authorisedBy, Direction.OUTGOING);
-                Relationship rejectedByRelationship = eventNode.getSingleRelationship(Relationships.rejectedBy, Direction.OUTGOING);
+            //event info
+            jg.writeObjectFieldStart("event");
+            jg.writeStringField("status", userEventStatus.name());
+            Framework.writeNodeProperties(eventNode, fields.get("event"), jg);
+            jg.writeEndObject();
 
-                //write added by
-                Node addedByNode = addedByRelationship.getEndNode();
-                writeAddedBy(addedByNode.getId(), addedByNode.getProperties("fullName", "email", "admin"), addedByNode.getLabels(), (long) addedByRelationship.getProperty("date"), jg);
+            jg.writeEndObject();
 
-                if (authorisedByRelationship == null && rejectedByRelationship == null){
-                    userEventStatus = UserEventStatus.PENDING_AUTH;
-                }
+        }
 
-                if (authorisedByRelationship != null && rejectedByRelationship == null){
-                    userEventStatus = UserEventStatus.ACTIVE;
+        jg.writeEndArray();
 
-                    Node authorisedByNode = authorisedByRelationship.getEndNode();
-                    writeAuthBy(authorisedByNode.getId(), authorisedByNode.getProperties("fullName", "email", "admin"), authorisedByNode.getLabels(), (long) authorisedByRelationship.getProperty("date"), jg);
-                }
+    }
 
-                if (authorisedByRelationship == null && rejectedByRelationship != null){
-                    userEventStatus = UserEventStatus.REJECTED;
+    /**
+     * @return Returns ids of events of this type awaiting authorisation. Must be called within a transaction
+     */
+    static ArrayList<Long> getPendingAuthEventNodeIds(Label label, GraphDatabaseService graphDb){
+        ArrayList<Long> eventNodeIds = new ArrayList<>();
 
-                    Node rejectedByNode = rejectedByRelationship.getEndNode();
-                    writeAuthBy(rejectedByNode.getId(), rejectedByNode.getProperties("fullName", "email", "admin"), rejectedByNode.getLabels(), (long) rejectedByNode.getProperty("date"), jg);
-                }
+        try (ResourceIterator<Node> iter = graphDb.findNodes(UserEventStatus.PENDING_AUTH.label)) {
 
-                //event info
-                jg.writeObjectFieldStart("event");
-                jg.writeStringField("status", userEventStatus.name());
-                Framework.writeNodeProperties(eventNode.getId(), eventNode.getAllProperties(), eventNode.getLabels(), jg);
-                jg.writeEndObject();
+            while (iter.hasNext()) {
+                Node eventNode = iter.next();
 
-                jg.writeEndObject();
+                if (eventNode.hasLabel(label)){
+                    eventNodeIds.add(eventNode.getId());
+                }
 
             }
 
-            jg.writeEndArray();
         }
 
+        return eventNodeIds;
     }
 
+    /**
+     * @return Returns the node the event belongs to. Must be called within a transaction
+     */
     static Node getSubjectNodeFromEventNode(Node eventNode, GraphDatabaseService graphDb){
 
         Node subjectNode = null;
         org.neo4j.graphdb.Path longestPath = null;
 
-        try (Transaction tx = graphDb.beginTx()) {
-            for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .relationships(Relationships.hasEvent, Direction.INCOMING)
-                    .traverse(eventNode)) {
-                longestPath = path;
-            }
+        Relationship hasSubjectRelationship = eventNode.getSingleRelationship(Relationships.hasSubject, Direction.OUTGOING);
 
-            //loop over nodes in this path
-            for (Node node : longestPath.nodes()) {
-                subjectNode = node;
-            }
+        if (hasSubjectRelationship != null){
+            return hasSubjectRelationship.getEndNode();
+        }
 
+        //event predates subject pointer
+        for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .relationships(Relationships.hasEvent, Direction.INCOMING)
+                .traverse(eventNode)) {
+            longestPath = path;
+        }
+
+        //loop over nodes in this path
+        for (Node node : longestPath.nodes()) {
+            subjectNode = node;
         }
 
         return subjectNode;
     }
 
+    /**
+     * @return Returns the latest event, or the subject itself if it has none. Must be called within a transaction
+     */
     static Node getLastUserEventNode(Node subjectNode, GraphDatabaseService graphDb){
+        Relationship hasHeadEventRelationship = subjectNode.getSingleRelationship(Relationships.hasHeadEvent, Direction.OUTGOING);
 
-        Node lastEventNode = null;
-        org.neo4j.graphdb.Path longestPath = null;
+        if (hasHeadEventRelationship != null){
+            return hasHeadEventRelationship.getEndNode();
+        }
+
+        //history predates head pointer
+        return getLastUserEventNodeFromChain(subjectNode, graphDb);
+    }
+
+    /**
+     * @return Returns the latest authorised event or null. Must be called within a transaction
+     */
+    static Node getLastActiveUserEventNode(Node subjectNode, GraphDatabaseService graphDb){
+
+        //active pointer is maintained alongside head pointer
+        if (subjectNode.hasRelationship(Relationships.hasHeadEvent, Direction.OUTGOING)){
+            Relationship hasActiveEventRelationship = subjectNode.getSingleRelationship(Relationships.hasActiveEvent, Direction.OUTGOING);
+            return hasActiveEventRelationship == null ? null : hasActiveEventRelationship.getEndNode();
+        }
+
+        //history predates head pointer
+        return getLastActiveUserEventNodeFromChain(subjectNode, graphDb);
+    }
+
+    /**
+     * Appends event to the end of the subject HAS_EVENT chain and moves the head pointer. The pending check and append
+     * run in one transaction holding the subject write lock so concurrent submissions cannot fork the chain
+     * @param eventName name of the event in user-facing errors e.g. QC result
+     * @return new event node
+     */
+    static Node addUserEvent(Node subjectNode, Label label, String eventName, Map<String, Object> properties, Node userNode, GraphDatabaseService graphDb){
+        Node newEventNode;
+        ReentrantLock subjectLock = getSubjectLock(subjectNode);
+
+        subjectLock.lock();
 
         try (Transaction tx = graphDb.beginTx()) {
-            for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .relationships(Relationships.hasEvent, Direction.OUTGOING)
-                    .traverse(subjectNode)) {
-                longestPath = path;
+            tx.acquireWriteLock(subjectNode);
+
+            initialiseEventPointers(subjectNode, graphDb);
+            Node lastEventNode = getLastUserEventNode(subjectNode, graphDb);
+
+            //check subject does not already have outstanding auths
+            if (lastEventNode.getId() != subjectNode.getId() && getUserEventStatus(lastEventNode, graphDb) == UserEventStatus.PENDING_AUTH){
+                throw new IllegalArgumentException("Cannot add " + eventName + ". Auth pending.");
             }
 
-            //loop over nodes in this path
-            for (Node node : longestPath.nodes()) {
-                lastEventNode = node;
+            newEventNode = graphDb.createNode(label, UserEventStatus.PENDING_AUTH.label);
+
+            for (Map.Entry<String, Object> property : properties.entrySet()){
+                newEventNode.setProperty(property.getKey(), property.getValue());
             }
 
+            Relationship addedByRelationship = newEventNode.createRelationshipTo(userNode, Relationships.addedBy);
+            addedByRelationship.setProperty("date", new Date().getTime());
+
+            lastEventNode.createRelationshipTo(newEventNode, Relationships.hasEvent);
+            newEventNode.createRelationshipTo(subjectNode, Relationships.hasSubject);
+            setEventPointer(subjectNode, Relationships.hasHeadEvent, newEventNode);
+
+            tx.success();
+        } finally {
+            subjectLock.unlock();
+        }
+
+        return newEventNode;
+    }
+
+    /**
+     * @return Returns the in-process lock striped over subject node ids. Writers to the same subject queue here rather
+     * than in the lock manager; unrelated subjects rarely share a stripe
+     */
+    private static ReentrantLock getSubjectLock(Node subjectNode){
+        return subjectLocks[(int) (subjectNode.getId() % subjectLocks.length)];
+    }
+
+    private static Node getLastUserEventNodeFromChain(Node subjectNode, GraphDatabaseService graphDb){
+
+        Node lastEventNode = null;
+        org.neo4j.graphdb.Path longestPath = null;
+
+        for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .relationships(Relationships.hasEvent, Direction.OUTGOING)
+                .traverse(subjectNode)) {
+            longestPath = path;
+        }
+
+        //loop over nodes in this path
+        for (Node node : longestPath.nodes()) {
+            lastEventNode = node;
         }
 
         return lastEventNode;
     }
 
-    static Node getLastActiveUserEventNode(Node subjectNode, GraphDatabaseService graphDb){
+    private static Node getLastActiveUserEventNodeFromChain(Node subjectNode, GraphDatabaseService graphDb){
 
         Node lastEventNode = null;
         org.neo4j.graphdb.Path longestPath = null;
 
-        try (Transaction tx = graphDb.beginTx()) {
-            for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .relationships(Relationships.hasEvent, Direction.OUTGOING)
-                    .traverse(subjectNode)) {
-                longestPath = path;
-            }
+        for (org.neo4j.graphdb.Path path : graphDb.traversalDescription()
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .relationships(Relationships.hasEvent, Direction.OUTGOING)
+                .traverse(subjectNode)) {
+            longestPath = path;
+        }
 
-            //loop over nodes in this path
-            for (Node node : longestPath.nodes()) {
-                if (getUserEventStatus(node, graphDb) == UserEventStatus.ACTIVE){
-                    lastEventNode = node;
-                }
+        //loop over nodes in this path
+        for (Node node : longestPath.nodes()) {
+            if (getUserEventStatus(node, graphDb) == UserEventStatus.ACTIVE){
+                lastEventNode = node;
             }
-
         }
 
         return lastEventNode;
     }
 
+    /**
+     * Sets head and active pointers from the HAS_EVENT chain if the subject has none. Must be called within a transaction
+     */
+    static void initialiseEventPointers(Node subjectNode, GraphDatabaseService graphDb){
+        if (subjectNode.hasRelationship(Relationships.hasHeadEvent, Direction.OUTGOING)){
+            return;
+        }
+
+        Node lastEventNode = getLastUserEventNodeFromChain(subjectNode, graphDb);
+        Node lastActiveEventNode = getLastActiveUserEventNodeFromChain(subjectNode, graphDb);
+
+        //no history yet
+        if (lastEventNode.getId() == subjectNode.getId()){
+            return;
+        }
+
+        setEventPointer(subjectNode, Relationships.hasHeadEvent, lastEventNode);
+        if (lastActiveEventNode != null){
+            setEventPointer(subjectNode, Relationships.hasActiveEvent, lastActiveEventNode);
+        }
+    }
+
+    private static void setEventPointer(Node subjectNode, RelationshipType pointer, Node eventNode){
+        Relationship pointerRelationship = subjectNode.getSingleRelationship(pointer, Direction.OUTGOING);
+
+        if (pointerRelationship != null){
+            pointerRelationship.delete();
+        }
+
+        subjectNode.createRelationshipTo(eventNode, pointer);
+    }
+
+    /**
+     * Authorises or rejects a pending event under the same subject locks as addUserEvent. A changed QC outcome is applied to
+     * stored variant occurrence after the authorisation commits, under occurrenceLock so no other update interleaves
+     */
     private static void authUserEvent(Node eventNode, Node userNode, boolean acceptOrReject, GraphDatabaseService graphDb){
+        Node subjectNode;
+        boolean qualityControl;
+
         try (Transaction tx = graphDb.beginTx()) {
+            subjectNode = getSubjectNodeFromEventNode(eventNode, graphDb);
+            qualityControl = eventNode.hasLabel(Labels.qualityControl);
+        }
+
+        if (qualityControl){
+            Variant.occurrenceLock.lock();
+        }
+
+        try {
+            boolean wasQcPass = authUserEvent(eventNode, subjectNode, userNode, acceptOrReject, graphDb);
+
+            //dataset QC outcome changed
+            if (qualityControl && acceptOrReject && wasQcPass != isPassOrFail(eventNode, graphDb)){
+                Variant.updateGlobalVariantOccurrenceQcPass(subjectNode, !wasQcPass, graphDb);
+            }
+
+        } finally {
+            if (qualityControl){
+                Variant.occurrenceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return Returns the subject's QC outcome before the event was authorised
+     */
+    private static boolean authUserEvent(Node eventNode, Node subjectNode, Node userNode, boolean acceptOrReject, GraphDatabaseService graphDb){
+        ReentrantLock subjectLock = getSubjectLock(subjectNode);
+        boolean wasQcPass;
+
+        subjectLock.lock();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            tx.acquireWriteLock(subjectNode);
+
+            //event may have been authorised or rejected since the request was read
+            if (getUserEventStatus(eventNode, graphDb) != UserEventStatus.PENDING_AUTH) {
+                throw new IllegalArgumentException("Event has no pending authorisation");
+            }
+
+            wasQcPass = eventNode.hasLabel(Labels.qualityControl) && Dataset.isQcPass(subjectNode, graphDb);
+
+            initialiseEventPointers(subjectNode, graphDb);
+
             Relationship authByRelationship = eventNode.createRelationshipTo(userNode, acceptOrReject ? Relationships.authorisedBy : Relationships.rejectedBy);
             authByRelationship.setProperty("date", new Date().getTime());
+
+            eventNode.removeLabel(UserEventStatus.PENDING_AUTH.label);
+            eventNode.addLabel(acceptOrReject ? UserEventStatus.ACTIVE.label : UserEventStatus.REJECTED.label);
+
+            //latest authorised event is always the active one
+            if (acceptOrReject){
+                setEventPointer(subjectNode, Relationships.hasActiveEvent, eventNode);
+            }
+
             tx.success();
+        } finally {
+            subjectLock.unlock();
         }
+
+        return wasQcPass;
     }
 
+    private static boolean isPassOrFail(Node eventNode, GraphDatabaseService graphDb){
+        try (Transaction tx = graphDb.beginTx()) {
+            return (boolean) eventNode.getProperty("passOrFail");
+        }
+    }
+
+    /**
+     * @return Returns the event status. Must be called within a transaction
+     */
     static UserEventStatus getUserEventStatus(Node eventNode, GraphDatabaseService graphDb) {
         Relationship authorisedByRelationship, rejectedByRelationship;
 
-        try (Transaction tx = graphDb.beginTx()) {
-            authorisedByRelationship = eventNode.getSingleRelationship(Relationships.authorisedBy, Direction.OUTGOING);
-            rejectedByRelationship = eventNode.getSingleRelationship(Relationships.rejectedBy, Direction.OUTGOING);
+        //status is stored as a label
+        for (UserEventStatus userEventStatus : UserEventStatus.values()){
+            if (eventNode.hasLabel(userEventStatus.label)){
+                return userEventStatus;
+            }
         }
 
+        //event predates status labels
+        authorisedByRelationship = eventNode.getSingleRelationship(Relationships.authorisedBy, Direction.OUTGOING);
+        rejectedByRelationship = eventNode.getSingleRelationship(Relationships.rejectedBy, Direction.OUTGOING);
+
         if (authorisedByRelationship == null && rejectedByRelationship == null){
             return UserEventStatus.PENDING_AUTH;
         }
@@ -262,6 +492,20 @@ public class Event {
         return null;
     }
 
+    /**
+     * Writes the user who added an event, limited to fields if set, otherwise to fullName, email and admin. Must be called within a transaction
+     */
+    static void writeAddedBy(Relationship addedByRelationship, String[] fields, JsonGenerator jg) throws IOException {
+        Node userNode = addedByRelationship.getEndNode();
+        writeAddedBy(userNode.getId(), userNode.getProperties(fields == null ? userFields : fields), userNode.getLabels(), (long) addedByRelationship.getProperty("date"), jg);
+    }
+    /**
+     * Writes the user who authorised or rejected an event, limited to fields if set, otherwise to fullName, email and admin. Must be called within a transaction
+     */
+    static void writeAuthBy(Relationship authByRelationship, String[] fields, JsonGenerator jg) throws IOException {
+        Node userNode = authByRelationship.getEndNode();
+        writeAuthBy(userNode.getId(), userNode.getProperties(fields == null ? userFields : fields), userNode.getLabels(), (long) authByRelationship.getProperty("date"), jg);
+    }
     static void writeAddedBy(final Long userNodeId, final Map<String, Object> userNodeProperties, final Iterable<Label> userNodeLabels, long date, JsonGenerator jg) throws IOException {
         jg.writeObjectFieldStart("adder");
 
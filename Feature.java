@@ -1,6 +1,5 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -10,13 +9,16 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A class for working with features
@@ -30,32 +32,35 @@ public class Feature {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public Feature(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public Feature(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
      * @return Returns info about a feature
-     * @param json {featureId}
+     * @param json {featureId, fields{feature, event, user}}
      */
     @POST
     @Path("/info")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
     public Response info(final String json) {
 
         try {
 
             JsonNode jsonNode = objectMapper.readTree(json);
+            final Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     jg.writeStartObject();
 
@@ -63,10 +68,10 @@ public class Feature {
                         Node node = graphDb.findNode(Labels.feature, "featureId", jsonNode.get("featureId").asText());
 
                         jg.writeObjectFieldStart("feature");
-                        Framework.writeNodeProperties(node.getId(), node.getAllProperties(), node.getLabels(), jg);
+                        Framework.writeNodeProperties(node, fields.get("feature"), jg);
                         jg.writeEndObject();
 
-                        Event.writeEventHistory(node, jg, graphDb);
+                        Event.writeEventHistory(node, fields, jg, graphDb);
                     }
 
                     jg.writeEndObject();
@@ -77,8 +82,14 @@ public class Feature {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -109,44 +120,25 @@ public class Feature {
             try (Transaction tx = graphDb.beginTx()) {
                 featureNode = graphDb.findNode(Labels.feature, "featureId", jsonNode.get("featureId").asText());
                 userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
-            }
 
-            if (featureNode == null){
-                throw new NotFoundException("Could not find feature");
-            }
-            if (userNode == null){
-                throw new NotFoundException("Could not find user");
+                if (featureNode == null){
+                    throw new NotFoundException("Could not find feature");
+                }
+                if (userNode == null){
+                    throw new NotFoundException("Could not find user");
+                }
             }
 
-            //check subject not already have outstanding auths
-            Node lastEventNode = Event.getLastUserEventNode(featureNode, graphDb);
+            //add properties
+            HashMap<String, Object> properties = new HashMap<>();
+            properties.put("preference", jsonNode.get("preference").asBoolean());
 
-            if (lastEventNode.getId() != featureNode.getId()){
-                Event.UserEventStatus status = Event.getUserEventStatus(lastEventNode, graphDb);
-
-                if (status == Event.UserEventStatus.PENDING_AUTH){
-                    throw new IllegalArgumentException("Cannot add preference. Auth pending.");
-                }
+            if (jsonNode.has("evidence") && !jsonNode.get("evidence").asText().equals("")) {
+                properties.put("evidence", jsonNode.get("evidence").asText());
             }
 
             //add event
-            try (Transaction tx = graphDb.beginTx()) {
-                Node newEventNode = graphDb.createNode(Labels.featurePreference);
-
-                //add properties
-                newEventNode.setProperty("preference", jsonNode.get("preference").asBoolean());
-
-                if (jsonNode.has("evidence") && !jsonNode.get("evidence").asText().equals("")) {
-                    newEventNode.setProperty("evidence", jsonNode.get("evidence").asText());
-                }
-
-                Relationship addedByRelationship = newEventNode.createRelationshipTo(userNode, Relationships.addedBy);
-                addedByRelationship.setProperty("date", new Date().getTime());
-
-                lastEventNode.createRelationshipTo(newEventNode, Relationships.hasEvent);
-
-                tx.success();
-            }
+            Event.addUserEvent(featureNode, Labels.featurePreference, "preference", properties, userNode, graphDb);
 
             return Response.status(Response.Status.OK).build();
 
@@ -167,58 +159,59 @@ public class Feature {
     }
 
     /**
-     * @return Returns all variants with pending pathogenicity requiring auth
+     * @return Returns all feature preferences requiring auth
+     * @param limit page size, cursor continuation token from the previous page, fields feature:key,key;featurePreference:key;user:key
      */
     @GET
     @Path("/preference/pending/auth")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getPreferencePendingAuth() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response getPreferencePendingAuth(@QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
+            final long after = Framework.decodeCursor(cursor, limit);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
-                    jg.writeStartArray();
-
-                    try (Transaction tx = graphDb.beginTx()) {
-                        try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.featurePreference)){
-
-                            while (iter.hasNext()) {
-                                Node featurePreferenceNode = iter.next();
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                                if (Event.getUserEventStatus(featurePreferenceNode, graphDb) == Event.UserEventStatus.PENDING_AUTH){
+                    String nextCursor;
 
-                                    Relationship addedByRelationship = featurePreferenceNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
+                    format.writeStartList(limit != null, jg);
 
-                                    jg.writeStartObject();
+                    try (Transaction tx = graphDb.beginTx()) {
+                        List<Long> featurePreferenceNodeIds = Framework.getPage(Event.getPendingAuthEventNodeIds(Labels.featurePreference, graphDb), after, limit);
 
-                                    Node featureNode = Event.getSubjectNodeFromEventNode(featurePreferenceNode, graphDb);
-                                    jg.writeObjectFieldStart("feature");
-                                    Framework.writeNodeProperties(featureNode.getId(), featureNode.getAllProperties(), featureNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                        for (Long featurePreferenceNodeId : featurePreferenceNodeIds) {
+                            Node featurePreferenceNode = graphDb.getNodeById(featurePreferenceNodeId);
 
-                                    jg.writeObjectFieldStart("featurePreference");
-                                    Framework.writeNodeProperties(featurePreferenceNode.getId(), featurePreferenceNode.getAllProperties(), featurePreferenceNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            Relationship addedByRelationship = featurePreferenceNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
 
-                                    Node addedByUserNode = addedByRelationship.getEndNode();
-                                    Event.writeAddedBy(addedByUserNode.getId(), addedByUserNode.getProperties("fullName", "email", "admin"), addedByUserNode.getLabels(), (long) addedByRelationship.getProperty("date"), jg);
+                            jg.writeStartObject();
 
-                                    jg.writeEndObject();
+                            Node featureNode = Event.getSubjectNodeFromEventNode(featurePreferenceNode, graphDb);
+                            jg.writeObjectFieldStart("feature");
+                            Framework.writeNodeProperties(featureNode, projection.get("feature"), jg);
+                            jg.writeEndObject();
 
-                                }
+                            jg.writeObjectFieldStart("featurePreference");
+                            Framework.writeNodeProperties(featurePreferenceNode, projection.get("featurePreference"), jg);
+                            jg.writeEndObject();
 
-                            }
+                            Event.writeAddedBy(addedByRelationship, projection.get("user"), jg);
 
+                            jg.writeEndObject();
+                            format.writeEndRecord(jg);
                         }
+
+                        nextCursor = Framework.getNextCursor(featurePreferenceNodeIds, limit);
                     }
 
-                    jg.writeEndArray();
+                    format.writeEndList(limit != null, nextCursor, jg);
 
                     jg.flush();
                     jg.close();
@@ -227,8 +220,14 @@ public class Feature {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return format.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -1,10 +1,20 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.io.SerializedString;
 import org.neo4j.graphdb.*;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class of functions for working with Neo4j DB
@@ -14,22 +24,294 @@ import java.util.Map;
  * @since   2016-04-16
  */
 class Framework {
+    private static final SerializedString idName = new SerializedString("id");
+    private static final SerializedString propertiesName = new SerializedString("properties");
+    private static final SerializedString labelsName = new SerializedString("labels");
+    private static final SerializedString typeName = new SerializedString("type");
+    private static final int maxSerializedNames = 4096;
+    private static final ConcurrentHashMap<String, SerializedString> serializedNames = new ConcurrentHashMap<>();
+
     static void writeNodeProperties(final Long id, final Map<String, Object> properties, final Iterable<Label> labels, final JsonGenerator jg) throws IOException {
 
-        jg.writeNumberField("id", id);
-        jg.writeObjectField("properties", properties);
+        jg.writeFieldName(idName);
+        jg.writeNumber(id);
+
+        jg.writeFieldName(propertiesName);
+        writeProperties(properties, jg);
+
+        writeLabels(labels, jg);
+
+    }
+    static void writeNodeProperties(final Node node, final String[] fields, final JsonGenerator jg) throws IOException {
+        if (fields == null){
+            writeNodeProperties(node.getId(), node.getAllProperties(), node.getLabels(), jg);
+            return;
+        }
+
+        jg.writeFieldName(idName);
+        jg.writeNumber(node.getId());
+
+        jg.writeFieldName(propertiesName);
+        writeProperties(node, fields, jg);
+
+        writeLabels(node.getLabels(), jg);
+    }
+    static void writeRelationshipProperties(final Long id, final Map<String, Object> properties, final String name, final JsonGenerator jg) throws IOException {
+        jg.writeFieldName(idName);
+        jg.writeNumber(id);
+
+        jg.writeFieldName(propertiesName);
+        writeProperties(properties, jg);
 
-        jg.writeArrayFieldStart("labels");
+        jg.writeFieldName(typeName);
+        jg.writeString(getSerializedName(name));
+    }
+    static void writeRelationshipProperties(final Relationship relationship, final String[] fields, final JsonGenerator jg) throws IOException {
+        if (fields == null){
+            writeRelationshipProperties(relationship.getId(), relationship.getAllProperties(), relationship.getType().name(), jg);
+            return;
+        }
+
+        jg.writeFieldName(idName);
+        jg.writeNumber(relationship.getId());
+
+        jg.writeFieldName(propertiesName);
+        writeProperties(relationship, fields, jg);
+
+        jg.writeFieldName(typeName);
+        jg.writeString(getSerializedName(relationship.getType().name()));
+    }
+    private static void writeLabels(final Iterable<Label> labels, final JsonGenerator jg) throws IOException {
+        jg.writeFieldName(labelsName);
+        jg.writeStartArray();
         for (Label label : labels){
-            jg.writeString(label.name());
+            jg.writeString(getSerializedName(label.name()));
         }
         jg.writeEndArray();
+    }
+    private static void writeProperties(final Map<String, Object> properties, final JsonGenerator jg) throws IOException {
+        jg.writeStartObject();
+        for (Map.Entry<String, Object> property : properties.entrySet()){
+            jg.writeFieldName(getSerializedName(property.getKey()));
+            writeValue(property.getValue(), jg);
+        }
+        jg.writeEndObject();
+    }
+    /**
+     * Writes only the requested properties the container has, without building an intermediate map
+     */
+    private static void writeProperties(final PropertyContainer propertyContainer, final String[] fields, final JsonGenerator jg) throws IOException {
+        jg.writeStartObject();
+        for (String key : fields){
+            Object value = propertyContainer.getProperty(key, null);
+
+            if (value != null){
+                jg.writeFieldName(getSerializedName(key));
+                writeValue(value, jg);
+            }
+        }
+        jg.writeEndObject();
+    }
+    /**
+     * Writes Neo4j property values directly; output matches ObjectMapper for every type the store can hold
+     */
+    private static void writeValue(final Object value, final JsonGenerator jg) throws IOException {
+        if (value instanceof String){
+            jg.writeString((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+            jg.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double){
+            jg.writeNumber((double) (Double) value);
+        } else if (value instanceof Float){
+            jg.writeNumber((float) (Float) value);
+        } else if (value instanceof Boolean){
+            jg.writeBoolean((Boolean) value);
+        } else if (value instanceof String[]){
+            jg.writeStartArray();
+            for (String element : (String[]) value){
+                jg.writeString(element);
+            }
+            jg.writeEndArray();
+        } else if (value instanceof long[]){
+            jg.writeStartArray();
+            for (long element : (long[]) value){
+                jg.writeNumber(element);
+            }
+            jg.writeEndArray();
+        } else if (value instanceof int[]){
+            jg.writeStartArray();
+            for (int element : (int[]) value){
+                jg.writeNumber(element);
+            }
+            jg.writeEndArray();
+        } else if (value instanceof double[]){
+            jg.writeStartArray();
+            for (double element : (double[]) value){
+                jg.writeNumber(element);
+            }
+            jg.writeEndArray();
+        } else if (value instanceof float[]){
+            jg.writeStartArray();
+            for (float element : (float[]) value){
+                jg.writeNumber(element);
+            }
+            jg.writeEndArray();
+        } else if (value instanceof boolean[]){
+            jg.writeStartArray();
+            for (boolean element : (boolean[]) value){
+                jg.writeBoolean(element);
+            }
+            jg.writeEndArray();
+        } else {
+            //chars, short and byte arrays keep ObjectMapper's representation
+            jg.writeObject(value);
+        }
+    }
+    /**
+     * @return Returns the name with its JSON encoding cached; property keys, labels and types are a small fixed set
+     */
+    private static SerializedString getSerializedName(final String name){
+        SerializedString serializedName = serializedNames.get(name);
+
+        if (serializedName == null){
+            serializedName = new SerializedString(name);
 
+            if (serializedNames.size() < maxSerializedNames){
+                serializedNames.putIfAbsent(name, serializedName);
+            }
+        }
+
+        return serializedName;
     }
-    static void writeRelationshipProperties(final Long id, final Map<String, Object> properties, final String name, final JsonGenerator jg) throws IOException {
-        jg.writeNumberField("id", id);
-        jg.writeObjectField("properties", properties);
-        jg.writeStringField("type", name);
+    /**
+     * @return Returns only the requested properties, or all properties if fields is null
+     */
+    static Map<String, Object> getProperties(PropertyContainer propertyContainer, String[] fields){
+        return fields == null ? propertyContainer.getAllProperties() : propertyContainer.getProperties(fields);
+    }
+    /**
+     * @param fieldsNode {entity:[key]} e.g. {variant:[variantId, exacNfeMaf], dataset:[seqId]}
+     * @return Returns requested property keys by entity; entities not listed are written in full
+     */
+    static Map<String, String[]> getFields(JsonNode fieldsNode){
+        HashMap<String, String[]> fields = new HashMap<>();
+
+        if (fieldsNode == null){
+            return fields;
+        }
+
+        if (!fieldsNode.isObject()){
+            throw new IllegalArgumentException("fields must be an object of property lists");
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> iter = fieldsNode.getFields();
+
+        while (iter.hasNext()){
+            Map.Entry<String, JsonNode> entry = iter.next();
+
+            if (!entry.getValue().isArray()){
+                throw new IllegalArgumentException("fields " + entry.getKey() + " must be an array of property keys");
+            }
+
+            String[] keys = new String[entry.getValue().size()];
+
+            for (int i = 0; i < keys.length; i++){
+                if (!entry.getValue().get(i).isTextual()){
+                    throw new IllegalArgumentException("fields " + entry.getKey() + " must be an array of property keys");
+                }
+
+                keys[i] = entry.getValue().get(i).asText();
+            }
+
+            fields.put(entry.getKey(), keys);
+        }
+
+        return fields;
+    }
+    /**
+     * @param fields entity:key,key;entity:key e.g. variant:variantId,exacNfeMaf;dataset:seqId
+     * @return Returns requested property keys by entity; entities not listed are written in full
+     */
+    static Map<String, String[]> getFields(String fields){
+        HashMap<String, String[]> projection = new HashMap<>();
+
+        if (fields == null || fields.equals("")){
+            return projection;
+        }
+
+        for (String entity : fields.split(";")){
+            String[] fieldsByEntity = entity.split(":", 2);
+
+            if (fieldsByEntity.length != 2){
+                throw new IllegalArgumentException("Could not parse fields: " + entity);
+            }
+
+            projection.put(fieldsByEntity[0], fieldsByEntity[1].equals("") ? new String[0] : fieldsByEntity[1].split(","));
+        }
+
+        return projection;
+    }
+    /**
+     * @return Returns ids after the cursor in ascending order, at most limit if set
+     */
+    static List<Long> getPage(Iterable<Long> ids, long after, Integer limit){
+        ArrayList<Long> page = new ArrayList<>();
+
+        for (Long id : ids){
+            if (id > after){
+                page.add(id);
+            }
+        }
+
+        Collections.sort(page);
+
+        if (limit != null && page.size() > limit){
+            return new ArrayList<>(page.subList(0, limit));
+        }
+
+        return page;
+    }
+    static String getNextCursor(List<Long> page, Integer limit){
+        if (limit == null || page.size() < limit || page.isEmpty()){
+            return null;
+        }
+
+        return Base64.getUrlEncoder().encodeToString(Long.toString(page.get(page.size() - 1)).getBytes(Charset.forName("UTF-8")));
+    }
+    /**
+     * Validates paging parameters. Call before streaming so bad paging is a bad request rather than a broken stream
+     * @return Returns the id the page starts after
+     */
+    static long decodeCursor(String cursor, Integer limit){
+        if (limit != null && limit < 1){
+            throw new IllegalArgumentException("Limit must be at least 1");
+        }
+
+        if (cursor == null || cursor.equals("")){
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), Charset.forName("UTF-8")));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+    static void writeStartList(boolean paginated, JsonGenerator jg) throws IOException {
+        if (paginated){
+            jg.writeStartObject();
+            jg.writeArrayFieldStart("results");
+        } else {
+            jg.writeStartArray();
+        }
+    }
+    static void writeEndList(boolean paginated, String nextCursor, JsonGenerator jg) throws IOException {
+        jg.writeEndArray();
+
+        if (paginated){
+            jg.writeStringField("cursor", nextCursor);
+            jg.writeEndObject();
+        }
     }
     static Node matchOrCreateUniqueNode(GraphDatabaseService graphDb, Label label, String field, Object value) {
         Node node = null;
@@ -53,18 +335,28 @@ class Framework {
 
         return node;
     }
+    static String getDatasetKey(String sampleId, String worklistId, String seqId){
+        return sampleId + "|" + worklistId + "|" + seqId;
+    }
+    /**
+     * @return Returns the dataset node. Must be called within a transaction
+     */
     static Node findDatasetNode(String sampleId, String worklistId, String seqId, GraphDatabaseService graphDb){
+        Node datasetNode = graphDb.findNode(Labels.dataset, "datasetKey", getDatasetKey(sampleId, worklistId, seqId));
 
-        try (Transaction tx = graphDb.beginTx()) {
-            Node sampleNode = graphDb.findNode(Labels.sample, "sampleId", sampleId);
-            for (Relationship hasDataRelationship : sampleNode.getRelationships(Direction.OUTGOING, Relationships.hasData)){
-                Node node = hasDataRelationship.getEndNode();
+        if (datasetNode != null){
+            return datasetNode;
+        }
 
-                if (node.getProperty("worklistId").equals(worklistId) && node.getProperty("seqId").equals(seqId)){
-                    return node;
-                }
+        //dataset predates composite key
+        Node sampleNode = graphDb.findNode(Labels.sample, "sampleId", sampleId);
+        for (Relationship hasDataRelationship : sampleNode.getRelationships(Direction.OUTGOING, Relationships.hasData)){
+            Node node = hasDataRelationship.getEndNode();
 
+            if (node.getProperty("worklistId").equals(worklistId) && node.getProperty("seqId").equals(seqId)){
+                return node;
             }
+
         }
 
         throw new NullPointerException("Could not find data node");
@@ -0,0 +1,418 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Memory-mapped columnar store of population allele frequencies. Variants are addressed by a dense ordinal (their
+ * position in the sorted node id column); each population and the per-group maximum is a float column with NaN for
+ * missing values. The file lives in the database directory and is rebuilt in the background every time the database
+ * starts, since edits made while the extension was not running or lost in a crash never reach it; until the build
+ * completes callers fall back to node properties. A transaction event handler registered as the database starts keeps
+ * the store coherent with commits, including those made during a build. Variants created after the last build are
+ * absent and callers also fall back to node properties
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class FrequencyStore {
+
+    enum Group {
+        exac, oneKg
+    }
+
+    private static final int magic = 0x46525132;
+    private static final int headerBytes = 16;
+    private static final long availabilityTimeoutMillis = 10 * 60 * 1000;
+    private static final String[] populations = getPopulations();
+    private static final int columnCount = populations.length + Group.values().length;
+    private static final String fileName = "variantdatabase-frequencies.bin";
+
+    private static final Object buildLock = new Object();
+
+    private static volatile Store store = null;
+    private static volatile File storeFile = null;
+
+    //commits made while a build is running, replayed onto the new store; guarded by FrequencyStore.class
+    private static Map<Long, Map<Integer, Float>> pendingChanges = null;
+
+    private static class Store {
+        final MappedByteBuffer buffer;
+        final int count;
+        final LongBuffer nodeIds;
+        final FloatBuffer columns;
+
+        Store(MappedByteBuffer buffer){
+            this.buffer = buffer;
+            this.count = buffer.getInt(4);
+
+            buffer.position(headerBytes);
+            this.nodeIds = buffer.slice().asLongBuffer();
+
+            buffer.position(headerBytes + count * 8);
+            this.columns = buffer.slice().asFloatBuffer();
+
+            buffer.position(0);
+        }
+
+        int getOrdinal(long nodeId){
+            int low = 0, high = count - 1;
+
+            while (low <= high){
+                int mid = (low + high) >>> 1;
+                long midNodeId = nodeIds.get(mid);
+
+                if (midNodeId < nodeId){
+                    low = mid + 1;
+                } else if (midNodeId > nodeId){
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -1;
+        }
+
+        float get(int ordinal, int column){
+            return columns.get(column * count + ordinal);
+        }
+
+        void set(int ordinal, int column, float value){
+            columns.put(column * count + ordinal, value);
+        }
+    }
+
+    /**
+     * @return Returns column indexes for the populations, or null if any population is not stored
+     */
+    static int[] getColumns(String[] populationKeys){
+        int[] columns = new int[populationKeys.length];
+
+        for (int i = 0; i < populationKeys.length; i++){
+            columns[i] = Arrays.asList(populations).indexOf(populationKeys[i]);
+
+            if (columns[i] == -1){
+                return null;
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * @return Returns the max column if the populations are exactly one group, otherwise -1
+     */
+    static int getMaxColumn(String[] populationKeys){
+        for (Group group : Group.values()){
+            if (new HashSet<>(Arrays.asList(populationKeys)).equals(new HashSet<>(Arrays.asList(getPopulations(group))))){
+                return populations.length + group.ordinal();
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return Returns 1 if any column exceeds the ceiling, 0 if none do, or -1 if the variant is not stored
+     */
+    static int exceeds(long variantNodeId, int[] columns, int maxColumn, float maxAlleleFrequency, GraphDatabaseService graphDb){
+        Store current = store;
+
+        if (current == null){
+            return -1;
+        }
+
+        int ordinal = current.getOrdinal(variantNodeId);
+
+        if (ordinal == -1){
+            return -1;
+        }
+
+        if (maxColumn != -1){
+            return current.get(ordinal, maxColumn) > maxAlleleFrequency ? 1 : 0;
+        }
+
+        for (int column : columns){
+            if (current.get(ordinal, column) > maxAlleleFrequency){
+                return 1;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Writes frequencies for all variants to the store file and publishes it. Commits are not blocked while building;
+     * their changes are buffered and replayed onto the new store before it is published
+     * @return Returns number of variants stored
+     */
+    static int build(GraphDatabaseService graphDb) throws IOException {
+        synchronized (buildLock){
+            if (storeFile == null){
+                throw new IllegalStateException("Frequency store was not started with the database");
+            }
+
+            synchronized (FrequencyStore.class){
+                pendingChanges = new HashMap<>();
+            }
+
+            try {
+                Store built = write(graphDb);
+
+                synchronized (FrequencyStore.class){
+                    applyChanges(built, pendingChanges);
+                    store = built;
+                }
+
+                return built.count;
+            } finally {
+                synchronized (FrequencyStore.class){
+                    pendingChanges = null;
+                }
+            }
+        }
+    }
+
+    private static Store write(GraphDatabaseService graphDb) throws IOException {
+        Store built;
+        ArrayList<Long> variantNodeIds = new ArrayList<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.variant)) {
+                while (iter.hasNext()) {
+                    variantNodeIds.add(iter.next().getId());
+                }
+            }
+        }
+
+        Collections.sort(variantNodeIds);
+
+        long bytes = headerBytes + (long) variantNodeIds.size() * (8 + 4 * columnCount);
+
+        if (bytes > Integer.MAX_VALUE){
+            throw new IllegalStateException("Too many variants for frequency store: " + variantNodeIds.size());
+        }
+
+        File file = new File(storeFile.getPath() + ".tmp");
+        file.delete();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+
+            buffer.putInt(0, magic);
+            buffer.putInt(4, variantNodeIds.size());
+            buffer.putInt(8, columnCount);
+
+            for (int i = 0; i < variantNodeIds.size(); i++){
+                buffer.putLong(headerBytes + i * 8, variantNodeIds.get(i));
+            }
+
+            built = new Store(buffer);
+
+            try (Transaction tx = graphDb.beginTx()) {
+                for (int i = 0; i < variantNodeIds.size(); i++){
+                    Node variantNode;
+
+                    try {
+                        variantNode = graphDb.getNodeById(variantNodeIds.get(i));
+                    } catch (NotFoundException e) {
+                        variantNode = null; //deleted since the scan
+                    }
+
+                    for (int column = 0; column < populations.length; column++){
+                        Object value = variantNode == null ? null : variantNode.getProperty(populations[column], null);
+                        built.set(i, column, value instanceof Number ? ((Number) value).floatValue() : Float.NaN);
+                    }
+
+                    setMaxColumns(built, i);
+                }
+            }
+
+            buffer.force();
+        }
+
+        //the mapping stays valid across the rename
+        if (!file.renameTo(storeFile)){
+            throw new IOException("Could not write frequency store " + storeFile);
+        }
+
+        return built;
+    }
+
+    /**
+     * Registers the transaction event handler and rebuilds the store on a background thread. Called as the database
+     * starts, before any commit; the previous file is never trusted
+     */
+    static synchronized void start(final GraphDatabaseService graphDb, File storeDir){
+        storeFile = new File(storeDir, fileName);
+        store = null;
+
+        graphDb.registerTransactionEventHandler(new FrequencyTransactionEventHandler());
+
+        Thread buildThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (graphDb.isAvailable(availabilityTimeoutMillis)){
+                        build(graphDb);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    //callers fall back to node properties
+                    store = null;
+                }
+            }
+        }, "variantdatabase-frequency-build");
+
+        buildThread.setDaemon(true);
+        buildThread.start();
+    }
+
+    /**
+     * Must be called holding FrequencyStore.class
+     */
+    private static void applyChanges(Store current, Map<Long, Map<Integer, Float>> changes){
+        for (Map.Entry<Long, Map<Integer, Float>> entry : changes.entrySet()){
+            int ordinal = current.getOrdinal(entry.getKey());
+
+            if (ordinal == -1){
+                continue;
+            }
+
+            for (Map.Entry<Integer, Float> change : entry.getValue().entrySet()){
+                current.set(ordinal, change.getKey(), change.getValue());
+            }
+
+            setMaxColumns(current, ordinal);
+        }
+    }
+
+    private static void setMaxColumns(Store current, int ordinal){
+        int column = 0;
+
+        for (Group group : Group.values()){
+            float max = Float.NaN;
+
+            for (int i = 0; i < getPopulations(group).length; i++, column++){
+                float value = current.get(ordinal, column);
+
+                if (!Float.isNaN(value) && (Float.isNaN(max) || value > max)){
+                    max = value;
+                }
+            }
+
+            current.set(ordinal, populations.length + group.ordinal(), max);
+        }
+    }
+
+    private static String[] getPopulations(Group group){
+        Enum<?>[] values = group == Group.exac ? Variant.exac.values() : Variant.oneKg.values();
+        String[] keys = new String[values.length];
+
+        for (int i = 0; i < values.length; i++){
+            keys[i] = values[i].toString();
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return Returns stored populations in column order; groups are contiguous in Group order
+     */
+    private static String[] getPopulations(){
+        ArrayList<String> keys = new ArrayList<>();
+
+        for (Group group : Group.values()){
+            keys.addAll(Arrays.asList(getPopulations(group)));
+        }
+
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    private static class FrequencyTransactionEventHandler extends TransactionEventHandler.Adapter<Map<Long, Map<Integer, Float>>> {
+
+        @Override
+        public Map<Long, Map<Integer, Float>> beforeCommit(TransactionData data) throws Exception {
+            HashMap<Long, Map<Integer, Float>> changes = new HashMap<>();
+
+            for (PropertyEntry<Node> propertyEntry : data.assignedNodeProperties()){
+                addChange(changes, propertyEntry.entity().getId(), propertyEntry.key(), propertyEntry.value());
+            }
+
+            for (PropertyEntry<Node> propertyEntry : data.removedNodeProperties()){
+                addChange(changes, propertyEntry.entity().getId(), propertyEntry.key(), null);
+            }
+
+            //clear deleted variants so a reused node id does not inherit their frequencies
+            for (LabelEntry labelEntry : data.removedLabels()){
+                if (labelEntry.label().name().equals(Labels.variant.name())){
+                    for (String population : populations){
+                        addChange(changes, labelEntry.node().getId(), population, null);
+                    }
+                }
+            }
+
+            return changes;
+        }
+
+        private void addChange(HashMap<Long, Map<Integer, Float>> changes, long nodeId, String key, Object value){
+            int column = Arrays.asList(populations).indexOf(key);
+
+            if (column == -1){
+                return;
+            }
+
+            Map<Integer, Float> nodeChanges = changes.get(nodeId);
+
+            if (nodeChanges == null){
+                nodeChanges = new HashMap<>();
+                changes.put(nodeId, nodeChanges);
+            }
+
+            nodeChanges.put(column, value instanceof Number ? ((Number) value).floatValue() : Float.NaN);
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Map<Long, Map<Integer, Float>> changes) {
+            if (changes.isEmpty()){
+                return;
+            }
+
+            synchronized (FrequencyStore.class){
+
+                //replayed onto the store being built once it is written
+                if (pendingChanges != null){
+                    for (Map.Entry<Long, Map<Integer, Float>> entry : changes.entrySet()){
+                        Map<Integer, Float> nodeChanges = pendingChanges.get(entry.getKey());
+
+                        if (nodeChanges == null){
+                            nodeChanges = new HashMap<>();
+                            pendingChanges.put(entry.getKey(), nodeChanges);
+                        }
+
+                        nodeChanges.putAll(entry.getValue());
+                    }
+                }
+
+                if (store != null){
+                    applyChanges(store, changes);
+                }
+            }
+        }
+
+    }
+
+}
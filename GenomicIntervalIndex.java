@@ -0,0 +1,302 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+
+/**
+ * Process-wide positional index of variant nodes. Each contig holds sorted primitive arrays of (position, node id),
+ * built once per database and merged copy-on-write as variants are created, so range lookups are a binary search.
+ * Contig names are normalised so chr1 and 1 share an index
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class GenomicIntervalIndex {
+
+    private static volatile Map<String, Contig> contigs = new HashMap<>();
+    private static volatile GraphDatabaseService cachedGraphDb = null;
+
+    /**
+     * @return Returns node ids of variants starting within start-end inclusive, in position order
+     */
+    static List<Long> getVariantNodeIds(String contig, int start, int end, GraphDatabaseService graphDb){
+        ArrayList<Long> variantNodeIds = new ArrayList<>();
+
+        initialise(graphDb);
+
+        Contig index = contigs.get(normaliseContig(contig));
+
+        if (index == null){
+            return variantNodeIds;
+        }
+
+        for (int i = index.lowerBound(start); i < index.positions.length && index.positions[i] <= end; i++){
+            variantNodeIds.add(index.nodeIds[i]);
+        }
+
+        return variantNodeIds;
+    }
+
+    /**
+     * @return Returns the contig name without a chr prefix, upper case, with M as MT
+     */
+    static String normaliseContig(String contig){
+        String normalised = contig.regionMatches(true, 0, "chr", 0, 3) ? contig.substring(3) : contig;
+
+        normalised = normalised.toUpperCase(Locale.ROOT);
+
+        return normalised.equals("M") ? "MT" : normalised;
+    }
+
+    static void initialise(GraphDatabaseService graphDb){
+        if (cachedGraphDb == graphDb){
+            return;
+        }
+
+        synchronized (GenomicIntervalIndex.class){
+            if (cachedGraphDb == graphDb){
+                return;
+            }
+
+            //register first so no commit is missed while building; variants seen by both are deduplicated on merge
+            graphDb.registerTransactionEventHandler(new GenomicIntervalTransactionEventHandler());
+            contigs = new HashMap<>();
+
+            HashMap<String, Entries> entries = new HashMap<>();
+
+            try (Transaction tx = graphDb.beginTx()) {
+                try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.variant)) {
+
+                    while (iter.hasNext()) {
+                        Node variantNode = iter.next();
+                        addEntry(entries, variantNode.getProperty("variantId", null), variantNode.getId());
+                    }
+
+                }
+            }
+
+            merge(entries);
+
+            cachedGraphDb = graphDb;
+        }
+    }
+
+    private static void addEntry(HashMap<String, Entries> entries, Object variantId, long variantNodeId){
+        VariantKey variantKey;
+
+        if (variantId == null){
+            return;
+        }
+
+        try {
+            variantKey = VariantKey.parse(variantId.toString());
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        String contig = normaliseContig(variantKey.getContig());
+        Entries contigEntries = entries.get(contig);
+
+        if (contigEntries == null){
+            contigEntries = new Entries();
+            entries.put(contig, contigEntries);
+        }
+
+        contigEntries.add(variantKey.getPosition(), variantNodeId);
+    }
+
+    /**
+     * Merges new entries into a copy of the index and publishes it
+     */
+    private static synchronized void merge(HashMap<String, Entries> entries){
+        HashMap<String, Contig> merged = new HashMap<>(contigs);
+
+        for (Map.Entry<String, Entries> entry : entries.entrySet()){
+            entry.getValue().sort();
+            merged.put(entry.getKey(), Contig.merge(merged.get(entry.getKey()), entry.getValue()));
+        }
+
+        contigs = merged;
+    }
+
+    private static synchronized void remove(Set<Long> variantNodeIds){
+        HashMap<String, Contig> removed = new HashMap<>();
+
+        for (Map.Entry<String, Contig> entry : contigs.entrySet()){
+            removed.put(entry.getKey(), entry.getValue().remove(variantNodeIds));
+        }
+
+        contigs = removed;
+    }
+
+    private static int compare(int positionA, long nodeIdA, int positionB, long nodeIdB){
+        return positionA != positionB ? Integer.compare(positionA, positionB) : Long.compare(nodeIdA, nodeIdB);
+    }
+
+    /**
+     * Growable parallel arrays of (position, node id) awaiting a merge
+     */
+    private static class Entries {
+        int[] positions = new int[16];
+        long[] nodeIds = new long[16];
+        int size = 0;
+
+        void add(int position, long nodeId){
+            if (size == positions.length){
+                positions = Arrays.copyOf(positions, size * 2);
+                nodeIds = Arrays.copyOf(nodeIds, size * 2);
+            }
+
+            positions[size] = position;
+            nodeIds[size++] = nodeId;
+        }
+
+        /**
+         * Bottom-up merge sort by position then node id
+         */
+        void sort(){
+            int[] positionsBuffer = new int[size];
+            long[] nodeIdsBuffer = new long[size];
+
+            for (int width = 1; width < size; width *= 2){
+
+                for (int low = 0; low < size; low += 2 * width){
+                    int mid = Math.min(low + width, size), high = Math.min(low + 2 * width, size);
+                    int i = low, j = mid, k = low;
+
+                    while (i < mid || j < high){
+                        if (j == high || (i < mid && compare(positions[i], nodeIds[i], positions[j], nodeIds[j]) <= 0)){
+                            positionsBuffer[k] = positions[i];
+                            nodeIdsBuffer[k++] = nodeIds[i++];
+                        } else {
+                            positionsBuffer[k] = positions[j];
+                            nodeIdsBuffer[k++] = nodeIds[j++];
+                        }
+                    }
+                }
+
+                java.lang.System.arraycopy(positionsBuffer, 0, positions, 0, size);
+                java.lang.System.arraycopy(nodeIdsBuffer, 0, nodeIds, 0, size);
+            }
+        }
+    }
+
+    private static class Contig {
+        final int[] positions;
+        final long[] nodeIds;
+
+        Contig(int[] positions, long[] nodeIds){
+            this.positions = positions;
+            this.nodeIds = nodeIds;
+        }
+
+        int lowerBound(int position){
+            int low = 0, high = positions.length;
+
+            while (low < high){
+                int mid = (low + high) >>> 1;
+
+                if (positions[mid] < position){
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Merges sorted entries, skipping any already indexed
+         */
+        static Contig merge(Contig contig, Entries sortedEntries){
+            int length = contig == null ? 0 : contig.positions.length;
+            int[] positions = new int[length + sortedEntries.size];
+            long[] nodeIds = new long[positions.length];
+            int i = 0, j = 0, k = 0;
+
+            while (i < length || j < sortedEntries.size){
+                int position;
+                long nodeId;
+
+                if (j == sortedEntries.size || (i < length && compare(contig.positions[i], contig.nodeIds[i], sortedEntries.positions[j], sortedEntries.nodeIds[j]) <= 0)){
+                    position = contig.positions[i];
+                    nodeId = contig.nodeIds[i++];
+                } else {
+                    position = sortedEntries.positions[j];
+                    nodeId = sortedEntries.nodeIds[j++];
+                }
+
+                //duplicates are adjacent in (position, node id) order
+                if (k > 0 && positions[k - 1] == position && nodeIds[k - 1] == nodeId){
+                    continue;
+                }
+
+                positions[k] = position;
+                nodeIds[k++] = nodeId;
+            }
+
+            return new Contig(k == positions.length ? positions : Arrays.copyOf(positions, k), k == nodeIds.length ? nodeIds : Arrays.copyOf(nodeIds, k));
+        }
+
+        Contig remove(Set<Long> variantNodeIds){
+            int[] keptPositions = new int[positions.length];
+            long[] keptNodeIds = new long[positions.length];
+            int k = 0;
+
+            for (int i = 0; i < positions.length; i++){
+                if (!variantNodeIds.contains(nodeIds[i])){
+                    keptPositions[k] = positions[i];
+                    keptNodeIds[k++] = nodeIds[i];
+                }
+            }
+
+            return k == positions.length ? this : new Contig(Arrays.copyOf(keptPositions, k), Arrays.copyOf(keptNodeIds, k));
+        }
+    }
+
+    private static class GenomicIntervalTransactionEventHandler extends TransactionEventHandler.Adapter<GenomicIntervalTransactionEventHandler.Changes> {
+
+        static class Changes {
+            final HashMap<String, Entries> added = new HashMap<>();
+            final HashSet<Long> removed = new HashSet<>();
+        }
+
+        @Override
+        public Changes beforeCommit(TransactionData data) throws Exception {
+            Changes changes = new Changes();
+
+            for (LabelEntry labelEntry : data.assignedLabels()){
+                if (labelEntry.label().name().equals(Labels.variant.name())){
+                    addEntry(changes.added, labelEntry.node().getProperty("variantId", null), labelEntry.node().getId());
+                }
+            }
+
+            for (LabelEntry labelEntry : data.removedLabels()){
+                if (labelEntry.label().name().equals(Labels.variant.name())){
+                    changes.removed.add(labelEntry.node().getId());
+                }
+            }
+
+            return changes;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Changes changes) {
+            if (!changes.removed.isEmpty()){
+                remove(changes.removed);
+            }
+
+            if (!changes.added.isEmpty()){
+                merge(changes.added);
+            }
+        }
+
+    }
+
+}
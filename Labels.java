@@ -25,4 +25,8 @@ class Labels {
     static final Label disorder = Label.label("Disorder");
     static final Label qualityControl = Label.label("QualityControl");
     static final Label featurePreference = Label.label("FeaturePreference");
+    static final Label pendingAuth = Label.label("PendingAuth");
+    static final Label active = Label.label("Active");
+    static final Label rejected = Label.label("Rejected");
+    static final Label loading = Label.label("Loading");
 }
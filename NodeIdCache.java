@@ -0,0 +1,68 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of node ids keyed by a unique property. Hits are checked against the node so deleted nodes,
+ * reused ids and rolled back creates are treated as misses
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class NodeIdCache {
+
+    private final Label label;
+    private final String field;
+    private final Map<String, Long> nodeIds;
+
+    NodeIdCache(Label label, String field, final int maxSize){
+        this.label = label;
+        this.field = field;
+        this.nodeIds = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * @return Returns the node or null if it does not exist. Must be called within a transaction
+     */
+    Node findNode(String value, GraphDatabaseService graphDb){
+        Long nodeId = nodeIds.get(value);
+
+        if (nodeId != null){
+            try {
+                Node node = graphDb.getNodeById(nodeId);
+
+                if (node.hasLabel(label) && value.equals(node.getProperty(field, null))){
+                    return node;
+                }
+
+            } catch (NotFoundException e) {
+                //deleted
+            }
+
+            nodeIds.remove(value);
+        }
+
+        Node node = graphDb.findNode(label, field, value);
+
+        if (node != null){
+            nodeIds.put(value, node.getId());
+        }
+
+        return node;
+    }
+
+    void put(String value, Node node){
+        nodeIds.put(value, node.getId());
+    }
+
+}
@@ -1,6 +1,5 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -10,6 +9,7 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -17,6 +17,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A class for working with variants
@@ -30,11 +32,13 @@ public class Pathogenicity {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public Pathogenicity(@Context GraphDatabaseService graphDb, @Context Log log){
+    public Pathogenicity(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers){
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
@@ -57,19 +61,13 @@ public class Pathogenicity {
                 throw new IllegalArgumentException("Illegal classification. Accepted values are one to five inclusive");
             }
 
-            //get nodes
-            Node variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId"));
-            Node userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email"));
+            Node variantNode, userNode;
 
-            //check variant does not already have outstanding auths
-            Node lastEventNode = Event.getLastUserEventNode(variantNode, graphDb);
+            try (Transaction tx = graphDb.beginTx()) {
 
-            if (lastEventNode.getId() != variantNode.getId()){
-                Event.UserEventStatus status = Event.getUserEventStatus(lastEventNode, graphDb);
-
-                if (status == Event.UserEventStatus.PENDING_AUTH){
-                    throw new IllegalArgumentException("Cannot add pathogenicity. Auth pending.");
-                }
+                //get nodes
+                variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId"));
+                userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email"));
             }
 
             //add properties
@@ -85,7 +83,7 @@ public class Pathogenicity {
             }
 
             //add event
-            Event.addUserEvent(lastEventNode, Labels.pathogenicity, properties, userNode, graphDb);
+            Event.addUserEvent(variantNode, Labels.pathogenicity, "pathogenicity", properties, userNode, graphDb);
 
             return Response
                     .status(Response.Status.OK)
@@ -110,60 +108,59 @@ public class Pathogenicity {
     /**
      * GET /variantdatabase/pathogenicity/auth/pending
      * Returns list of variant classifications awaiting authorisation
+     * @param limit page size, cursor continuation token from the previous page, fields pathogenicity:key,key;variant:key;user:key
      */
     @GET
     @Path("/pathogenicity/auth/pending")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response authPending() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response authPending(@QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
+            final long after = Framework.decodeCursor(cursor, limit);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
-                    jg.writeStartArray();
-
-                    try (Transaction tx = graphDb.beginTx()) {
-                        try (ResourceIterator<Node> pathogenicityIterator = graphDb.findNodes(Labels.pathogenicity)){
-
-                            while (pathogenicityIterator.hasNext()) {
-                                Node pathogenicity = pathogenicityIterator.next();
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                                if (Event.getUserEventStatus(pathogenicity, graphDb) == Event.UserEventStatus.PENDING_AUTH){
+                    String nextCursor;
 
-                                    Relationship addedByRelationship = pathogenicity.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
+                    format.writeStartList(limit != null, jg);
 
-                                    jg.writeStartObject();
+                    try (Transaction tx = graphDb.beginTx()) {
+                        List<Long> pathogenicityNodeIds = Framework.getPage(Event.getPendingAuthEventNodeIds(Labels.pathogenicity, graphDb), after, limit);
 
-                                    jg.writeObjectFieldStart("pathogenicity");
-                                    Framework.writeNodeProperties(pathogenicity.getId(), pathogenicity.getAllProperties(), pathogenicity.getLabels(), jg);
-                                    jg.writeEndObject();
+                        for (Long pathogenicityNodeId : pathogenicityNodeIds) {
+                            Node pathogenicity = graphDb.getNodeById(pathogenicityNodeId);
 
-                                    jg.writeObjectFieldStart("addedBy");
-                                    User.writeLiteUserRecord(addedByRelationship.getEndNode().getId(), addedByRelationship.getEndNode().getLabels(), addedByRelationship.getEndNode().getProperty("fullName").toString(), addedByRelationship.getEndNode().getProperty("email").toString(), (boolean) addedByRelationship.getEndNode().getProperty("admin"), jg);
-                                    jg.writeNumberField("date",(long) addedByRelationship.getProperty("date"));
-                                    jg.writeEndObject();
+                            Relationship addedByRelationship = pathogenicity.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
 
-                                    Node variantNode = Event.getSubjectNodeFromEventNode(pathogenicity, graphDb);
+                            jg.writeStartObject();
 
-                                    jg.writeObjectFieldStart("variant");
-                                    Framework.writeNodeProperties(variantNode.getId(), variantNode.getAllProperties(), variantNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            jg.writeObjectFieldStart("pathogenicity");
+                            Framework.writeNodeProperties(pathogenicity, projection.get("pathogenicity"), jg);
+                            jg.writeEndObject();
 
-                                    jg.writeEndObject();
+                            Event.writeAddedBy(addedByRelationship, projection.get("user"), jg);
 
-                                }
+                            Node variantNode = Event.getSubjectNodeFromEventNode(pathogenicity, graphDb);
 
-                            }
+                            jg.writeObjectFieldStart("variant");
+                            Framework.writeNodeProperties(variantNode, projection.get("variant"), jg);
+                            jg.writeEndObject();
 
+                            jg.writeEndObject();
+                            format.writeEndRecord(jg);
                         }
+
+                        nextCursor = Framework.getNextCursor(pathogenicityNodeIds, limit);
                     }
 
-                    jg.writeEndArray();
+                    format.writeEndList(limit != null, nextCursor, jg);
 
                     jg.flush();
                     jg.close();
@@ -172,8 +169,14 @@ public class Pathogenicity {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return format.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
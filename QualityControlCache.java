@@ -0,0 +1,127 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide set of QC passing dataset node ids. Kept coherent with the graph by a transaction event handler
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class QualityControlCache {
+
+    private static final Set<Long> qcPassDatasetNodeIds = ConcurrentHashMap.newKeySet();
+    private static volatile GraphDatabaseService cachedGraphDb = null;
+
+    static boolean isQcPass(long datasetNodeId, GraphDatabaseService graphDb){
+        initialise(graphDb);
+        return qcPassDatasetNodeIds.contains(datasetNodeId);
+    }
+
+    static Set<Long> getQcPassDatasetNodeIds(GraphDatabaseService graphDb){
+        initialise(graphDb);
+        return Collections.unmodifiableSet(qcPassDatasetNodeIds);
+    }
+
+    static void initialise(GraphDatabaseService graphDb){
+        if (cachedGraphDb == graphDb){
+            return;
+        }
+
+        synchronized (QualityControlCache.class){
+            if (cachedGraphDb == graphDb){
+                return;
+            }
+
+            //register first so no commit is missed while building
+            graphDb.registerTransactionEventHandler(new QualityControlTransactionEventHandler(graphDb));
+            qcPassDatasetNodeIds.clear();
+
+            try (Transaction tx = graphDb.beginTx()) {
+                try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.dataset)) {
+
+                    while (iter.hasNext()) {
+                        Node datasetNode = iter.next();
+
+                        if (Dataset.getQcPassFromGraph(datasetNode, graphDb)){
+                            qcPassDatasetNodeIds.add(datasetNode.getId());
+                        }
+
+                    }
+
+                }
+            }
+
+            cachedGraphDb = graphDb;
+        }
+    }
+
+    private static class QualityControlTransactionEventHandler extends TransactionEventHandler.Adapter<Map<Long, Boolean>> {
+
+        private final GraphDatabaseService graphDb;
+
+        QualityControlTransactionEventHandler(GraphDatabaseService graphDb){
+            this.graphDb = graphDb;
+        }
+
+        @Override
+        public Map<Long, Boolean> beforeCommit(TransactionData data) throws Exception {
+            HashMap<Long, Boolean> datasetQcPass = new HashMap<>();
+
+            //QC events authorised in this transaction
+            for (LabelEntry labelEntry : data.assignedLabels()){
+                if (labelEntry.label().name().equals(Labels.active.name()) && labelEntry.node().hasLabel(Labels.qualityControl)){
+                    Node datasetNode = Event.getSubjectNodeFromEventNode(labelEntry.node(), graphDb);
+                    datasetQcPass.put(datasetNode.getId(), Dataset.getQcPassFromGraph(datasetNode, graphDb));
+                }
+            }
+
+            //QC events edited in this transaction
+            for (PropertyEntry<Node> propertyEntry : data.assignedNodeProperties()){
+                if (propertyEntry.key().equals("passOrFail") && propertyEntry.entity().hasLabel(Labels.qualityControl)){
+                    Node datasetNode = Event.getSubjectNodeFromEventNode(propertyEntry.entity(), graphDb);
+                    datasetQcPass.put(datasetNode.getId(), Dataset.getQcPassFromGraph(datasetNode, graphDb));
+                }
+            }
+
+            //deleted datasets
+            for (LabelEntry labelEntry : data.removedLabels()){
+                if (labelEntry.label().name().equals(Labels.dataset.name())){
+                    datasetQcPass.put(labelEntry.node().getId(), false);
+                }
+            }
+
+            return datasetQcPass;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Map<Long, Boolean> datasetQcPass) {
+            if (datasetQcPass == null || datasetQcPass.isEmpty()){
+                return;
+            }
+
+            synchronized (QualityControlCache.class){
+                for (Map.Entry<Long, Boolean> entry : datasetQcPass.entrySet()){
+                    if (entry.getValue()){
+                        qcPassDatasetNodeIds.add(entry.getKey());
+                    } else {
+                        qcPassDatasetNodeIds.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+
+    }
+
+}
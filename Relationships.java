@@ -12,6 +12,9 @@ import org.neo4j.graphdb.RelationshipType;
 class Relationships {
     static final RelationshipType hasData = RelationshipType.withName("HAS_DATA");
     static final RelationshipType hasEvent = RelationshipType.withName("HAS_EVENT");
+    static final RelationshipType hasHeadEvent = RelationshipType.withName("HAS_HEAD_EVENT");
+    static final RelationshipType hasActiveEvent = RelationshipType.withName("HAS_ACTIVE_EVENT");
+    static final RelationshipType hasSubject = RelationshipType.withName("HAS_SUBJECT");
     static final RelationshipType addedBy = RelationshipType.withName("ADDED_BY");
     static final RelationshipType authorisedBy = RelationshipType.withName("AUTHORISED_BY");
     static final RelationshipType rejectedBy = RelationshipType.withName("REJECTED_BY");
@@ -65,10 +65,14 @@ public class Report {
 
                     JsonNode jsonNode = objectMapper.readTree(json);
 
-                    Node datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
-                    Node userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
+                    Node datasetNode, userNode;
                     String workflowName = jsonNode.get("workflowName").asText();
 
+                    try (Transaction tx = graphDb.beginTx()) {
+                        datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
+                        userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
+                    }
+
                     printWriter.println("hi\ttab\ttab\tnewline");
 
                     printWriter.flush();
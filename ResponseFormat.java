@@ -0,0 +1,273 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response encoding negotiated from the Accept and Accept-Encoding headers. Smile is a binary encoding of the same
+ * JSON structure; NDJSON, only for endpoints that opt in with withNdjson, writes one record per line, flushed every
+ * variantdatabase.ndjson.flushRows records; gzip and deflate compress the stream as it is written. Compression level and how often compressed
+ * output is flushed to the client are set with the variantdatabase.compression.level and
+ * variantdatabase.compression.flushBytes system properties
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class ResponseFormat {
+
+    static final String applicationSmile = "application/x-jackson-smile";
+    static final String applicationNdjson = "application/x-ndjson";
+
+    private static final JsonFactory jsonFactory = new ObjectMapper().getJsonFactory();
+    private static final JsonFactory smileFactory = new SmileFactory(new ObjectMapper());
+    private static final int compressionLevel = Integer.getInteger("variantdatabase.compression.level", Deflater.DEFAULT_COMPRESSION);
+    private static final int compressionFlushBytes = Integer.getInteger("variantdatabase.compression.flushBytes", 64 * 1024);
+    private static final int compressionBufferBytes = 8 * 1024;
+    private static final int ndjsonFlushRows = Integer.getInteger("variantdatabase.ndjson.flushRows", 100);
+
+    private final List<MediaType> acceptableMediaTypes;
+    private final String mediaType;
+    private final JsonFactory factory;
+    private final String contentEncoding;
+    private int records = 0;
+
+    private ResponseFormat(List<MediaType> acceptableMediaTypes, boolean ndjsonSupported, String contentEncoding){
+        this.acceptableMediaTypes = acceptableMediaTypes;
+        this.mediaType = getMediaType(acceptableMediaTypes, ndjsonSupported);
+        this.factory = mediaType.equals(applicationSmile) ? smileFactory : jsonFactory;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return Returns the format for endpoints producing JSON or Smile. NDJSON is skipped in favour of the client's next acceptable type
+     */
+    static ResponseFormat negotiate(HttpHeaders headers){
+        if (headers == null){
+            return new ResponseFormat(null, false, null);
+        }
+
+        return new ResponseFormat(headers.getAcceptableMediaTypes(), false, getContentEncoding(headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING)));
+    }
+
+    /**
+     * @return Returns the format renegotiated for an endpoint that also produces NDJSON
+     */
+    ResponseFormat withNdjson(){
+        return new ResponseFormat(acceptableMediaTypes, true, contentEncoding);
+    }
+
+    /**
+     * @return Returns whichever of JSON, Smile or NDJSON if supported comes first in the client's preference order, JSON by default
+     */
+    private static String getMediaType(List<MediaType> acceptableMediaTypes, boolean ndjsonSupported){
+        if (acceptableMediaTypes == null){
+            return MediaType.APPLICATION_JSON;
+        }
+
+        for (MediaType acceptableMediaType : acceptableMediaTypes){
+            if (acceptableMediaType.isWildcardType() || (acceptableMediaType.getType().equals("application") && (acceptableMediaType.isWildcardSubtype() || acceptableMediaType.getSubtype().equals("json")))){
+                return MediaType.APPLICATION_JSON;
+            } else if (acceptableMediaType.getType().equals("application") && acceptableMediaType.getSubtype().equals("x-jackson-smile")){
+                return applicationSmile;
+            } else if (ndjsonSupported && acceptableMediaType.getType().equals("application") && acceptableMediaType.getSubtype().equals("x-ndjson")){
+                return applicationNdjson;
+            }
+        }
+
+        return MediaType.APPLICATION_JSON;
+    }
+
+    /**
+     * @return Returns gzip or deflate, whichever has the higher non-zero quality (gzip on ties), or null for identity
+     */
+    private static String getContentEncoding(List<String> acceptEncodingHeaders){
+        String contentEncoding = null;
+        double bestQuality = 0;
+
+        if (acceptEncodingHeaders == null){
+            return null;
+        }
+
+        for (String acceptEncodingHeader : acceptEncodingHeaders){
+            for (String coding : acceptEncodingHeader.split(",")){
+                String[] fields = coding.trim().split(";");
+                String name = fields[0].trim().toLowerCase();
+                double quality = 1;
+
+                for (int i = 1; i < fields.length; i++){
+                    String parameter = fields[i].trim();
+
+                    if (parameter.startsWith("q=")){
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+
+                if ((name.equals("gzip") || name.equals("deflate")) && quality > 0 && (quality > bestQuality || (quality == bestQuality && name.equals("gzip")))){
+                    contentEncoding = name;
+                    bestQuality = quality;
+                }
+            }
+        }
+
+        return contentEncoding;
+    }
+
+    /**
+     * @return Returns an OK response for the stream with content type, content encoding and Vary set
+     */
+    Response.ResponseBuilder ok(StreamingOutput stream){
+        Response.ResponseBuilder responseBuilder = Response.ok().entity(stream).type(mediaType).header(HttpHeaders.VARY, "Accept, Accept-Encoding");
+
+        if (contentEncoding != null){
+            responseBuilder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+
+        return responseBuilder;
+    }
+
+    JsonGenerator createJsonGenerator(OutputStream os) throws IOException {
+        JsonGenerator jg = factory.createJsonGenerator(compress(os), JsonEncoding.UTF8);
+
+        //records are separated by writeEndRecord rather than the default root value separator
+        if (isNdjson()){
+            jg.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        }
+
+        return jg;
+    }
+
+    boolean isNdjson(){
+        return mediaType.equals(applicationNdjson);
+    }
+
+    /**
+     * Opens a list; NDJSON records are written at the top level instead
+     */
+    void writeStartList(boolean paginated, JsonGenerator jg) throws IOException {
+        if (!isNdjson()){
+            Framework.writeStartList(paginated, jg);
+        }
+    }
+
+    /**
+     * Terminates an NDJSON record and flushes every ndjsonFlushRows records so clients can process as it arrives
+     */
+    void writeEndRecord(JsonGenerator jg) throws IOException {
+        if (!isNdjson()){
+            return;
+        }
+
+        jg.writeRaw('\n');
+
+        if (ndjsonFlushRows > 0 && ++records % ndjsonFlushRows == 0){
+            jg.flush();
+        }
+    }
+
+    /**
+     * Closes a list; paginated NDJSON ends with a summary record holding the cursor
+     */
+    void writeEndList(boolean paginated, String nextCursor, JsonGenerator jg) throws IOException {
+        if (!isNdjson()){
+            Framework.writeEndList(paginated, nextCursor, jg);
+        } else if (paginated){
+            jg.writeStartObject();
+            jg.writeStringField("cursor", nextCursor);
+            jg.writeEndObject();
+            writeEndRecord(jg);
+        }
+    }
+
+    /**
+     * Wraps the stream in a sync-flushing compressor; closing the generator finishes the compressed stream
+     */
+    private OutputStream compress(OutputStream os) throws IOException {
+        OutputStream compressed;
+
+        if (contentEncoding == null){
+            return os;
+        } else if (contentEncoding.equals("gzip")){
+            compressed = new GZIPOutputStream(os, compressionBufferBytes, true) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            };
+        } else {
+            final Deflater deflater = new Deflater(compressionLevel);
+
+            compressed = new DeflaterOutputStream(os, deflater, compressionBufferBytes, true) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        return compressionFlushBytes > 0 ? new PeriodicFlushOutputStream(compressed, compressionFlushBytes) : compressed;
+    }
+
+    /**
+     * Flushes compressed output to the client every flushBytes of input so large responses start arriving early
+     */
+    private static class PeriodicFlushOutputStream extends FilterOutputStream {
+        private final int flushBytes;
+        private int unflushedBytes = 0;
+
+        PeriodicFlushOutputStream(OutputStream out, int flushBytes){
+            super(out);
+            this.flushBytes = flushBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            unflushedBytes = 0;
+            out.flush();
+        }
+
+        private void written(int len) throws IOException {
+            unflushedBytes += len;
+
+            if (unflushedBytes >= flushBytes){
+                flush();
+            }
+        }
+    }
+
+}
@@ -1,6 +1,5 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -11,6 +10,7 @@ import org.neo4j.logging.Log;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -30,11 +30,13 @@ public class Symbol {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public Symbol(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public Symbol(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
@@ -44,7 +46,7 @@ public class Symbol {
     @POST
     @Path("/info")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
     public Response info(String json) {
         try {
 
@@ -52,7 +54,7 @@ public class Symbol {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
                     JsonNode jsonNode = objectMapper.readTree(json);
 
                     jg.writeStartObject();
@@ -73,7 +75,7 @@ public class Symbol {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -0,0 +1,136 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide index of the variant node ids annotated against each symbol. Symbols are indexed on first use
+ * and dropped by a transaction event handler when their features or annotations change
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class SymbolVariantIndex {
+
+    private static final ConcurrentHashMap<Long, long[]> symbolVariantNodeIds = new ConcurrentHashMap<>();
+    private static final AtomicLong generation = new AtomicLong();
+    private static volatile GraphDatabaseService cachedGraphDb = null;
+
+    /**
+     * @return Returns sorted variant node ids annotated against the symbol
+     */
+    static long[] getVariantNodeIds(Node symbolNode, GraphDatabaseService graphDb){
+        initialise(graphDb);
+
+        long[] variantNodeIds = symbolVariantNodeIds.get(symbolNode.getId());
+
+        if (variantNodeIds == null){
+            long indexGeneration = generation.get();
+            variantNodeIds = indexSymbol(symbolNode, graphDb);
+
+            //skip caching if annotations changed while indexing
+            if (generation.get() == indexGeneration){
+                symbolVariantNodeIds.put(symbolNode.getId(), variantNodeIds);
+            }
+        }
+
+        return variantNodeIds;
+    }
+
+    private static long[] indexSymbol(Node symbolNode, GraphDatabaseService graphDb){
+        HashSet<Long> variantNodeIds = new HashSet<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Relationship hasFeatureRelationship : symbolNode.getRelationships(Direction.OUTGOING, Relationships.hasFeature)){
+                for (Relationship hasAnnotationRelationship : hasFeatureRelationship.getEndNode().getRelationships(Direction.INCOMING, Relationships.hasAnnotation)){
+                    variantNodeIds.add(hasAnnotationRelationship.getStartNode().getId());
+                }
+            }
+        }
+
+        long[] sortedVariantNodeIds = new long[variantNodeIds.size()];
+        int i = 0;
+
+        for (Long variantNodeId : variantNodeIds){
+            sortedVariantNodeIds[i++] = variantNodeId;
+        }
+
+        Arrays.sort(sortedVariantNodeIds);
+
+        return sortedVariantNodeIds;
+    }
+
+    private static void initialise(GraphDatabaseService graphDb){
+        if (cachedGraphDb == graphDb){
+            return;
+        }
+
+        synchronized (SymbolVariantIndex.class){
+            if (cachedGraphDb == graphDb){
+                return;
+            }
+
+            graphDb.registerTransactionEventHandler(new SymbolVariantTransactionEventHandler());
+            symbolVariantNodeIds.clear();
+
+            cachedGraphDb = graphDb;
+        }
+    }
+
+    private static class SymbolVariantTransactionEventHandler extends TransactionEventHandler.Adapter<Set<Long>> {
+
+        @Override
+        public Set<Long> beforeCommit(TransactionData data) throws Exception {
+            HashSet<Long> symbolNodeIds = new HashSet<>();
+            HashSet<Long> deletedNodeIds = new HashSet<>();
+
+            for (Node node : data.deletedNodes()){
+                deletedNodeIds.add(node.getId());
+            }
+
+            addSymbolNodeIds(data.createdRelationships(), deletedNodeIds, symbolNodeIds);
+            addSymbolNodeIds(data.deletedRelationships(), deletedNodeIds, symbolNodeIds);
+
+            return symbolNodeIds;
+        }
+
+        /**
+         * Resolves the symbols affected by changed feature and annotation relationships. A deleted feature loses its
+         * hasFeature relationships in the same transaction, so its symbols are resolved from those instead
+         */
+        private static void addSymbolNodeIds(Iterable<Relationship> relationships, Set<Long> deletedNodeIds, Set<Long> symbolNodeIds){
+            for (Relationship relationship : relationships){
+                if (relationship.isType(Relationships.hasFeature)){
+                    symbolNodeIds.add(relationship.getStartNode().getId());
+                } else if (relationship.isType(Relationships.hasAnnotation) && !deletedNodeIds.contains(relationship.getEndNode().getId())){
+                    for (Relationship hasFeatureRelationship : relationship.getEndNode().getRelationships(Direction.INCOMING, Relationships.hasFeature)){
+                        symbolNodeIds.add(hasFeatureRelationship.getStartNode().getId());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<Long> symbolNodeIds) {
+            if (symbolNodeIds.isEmpty()){
+                return;
+            }
+
+            generation.incrementAndGet();
+
+            for (Long symbolNodeId : symbolNodeIds){
+                symbolVariantNodeIds.remove(symbolNodeId);
+            }
+        }
+
+    }
+
+}
@@ -1,7 +1,7 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.neo4j.graphdb.*;
 import org.neo4j.logging.Log;
@@ -9,12 +9,14 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 /**
@@ -27,12 +29,14 @@ import java.util.HashSet;
 @Path("/variantdatabase/system")
 public class System {
     private final Log log;
+    private final ResponseFormat responseFormat;
     private final GraphDatabaseService graphDb;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public System(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public System(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
@@ -40,7 +44,7 @@ public class System {
      */
     @GET
     @Path("/multiple/relationships")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
     public Response diagnosticNodesMultipleRelationships() {
         try {
 
@@ -50,12 +54,18 @@ public class System {
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
                     HashSet<Long> ids = new HashSet<>();
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     try (Transaction tx = graphDb.beginTx()) {
                         for (Node node : graphDb.getAllNodes()){
 
                             for (Relationship relationship : node.getRelationships(Direction.OUTGOING)){
+
+                                //event pointers intentionally duplicate HAS_EVENT
+                                if (relationship.isType(Relationships.hasHeadEvent) || relationship.isType(Relationships.hasActiveEvent) || relationship.isType(Relationships.hasSubject)){
+                                    continue;
+                                }
+
                                 if (ids.contains(relationship.getEndNode().getId())) {
                                     log.debug("node " + node.getId() + " " + node.getLabels().toString() + " is connected to node " + relationship.getEndNode().getId() + " " + relationship.getEndNode().getLabels().toString() + " more than once");
                                 } else {
@@ -73,7 +83,7 @@ public class System {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -115,6 +125,9 @@ public class System {
     public Response warmup(){
         try {
 
+            QualityControlCache.initialise(graphDb);
+            GenomicIntervalIndex.initialise(graphDb);
+
             try (Transaction tx = graphDb.beginTx()) {
                 Node start;
 
@@ -165,11 +178,13 @@ public class System {
                 graphDb.schema().constraintFor(Labels.symbol).assertPropertyIsUnique("symbolId").create();
                 graphDb.schema().constraintFor(Labels.variant).assertPropertyIsUnique("variantId").create();
                 graphDb.schema().constraintFor(Labels.variant).assertPropertyIsUnique("dbSnpId").create();
+                graphDb.schema().constraintFor(Labels.dataset).assertPropertyIsUnique("datasetKey").create();
 
-                graphDb.schema().indexFor(Labels.dataset).on("worklistId");
-                graphDb.schema().indexFor(Labels.dataset).on("seqId");
-                graphDb.schema().indexFor(Labels.dataset).on("assay");
-                graphDb.schema().indexFor(Labels.feature).on("ccdsId");
+                graphDb.schema().indexFor(Labels.dataset).on("worklistId").create();
+                graphDb.schema().indexFor(Labels.dataset).on("seqId").create();
+                graphDb.schema().indexFor(Labels.dataset).on("assay").create();
+                graphDb.schema().indexFor(Labels.feature).on("ccdsId").create();
+                graphDb.schema().indexFor(Labels.variant).on("variantKey").create();
 
                 tx.success();
             }
@@ -184,6 +199,173 @@ public class System {
         }
     }
 
+    /**
+     * Backfills derived data for graphs loaded before it was maintained
+     * @param json {batchSize}
+     * @return response code
+     * */
+    @POST
+    @Path("/migrate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response migrate(final String json){
+        try {
 
-}
+            JsonNode jsonNode = objectMapper.readTree(json);
+            int batchSize = jsonNode.has("batchSize") ? jsonNode.get("batchSize").asInt() : 10000;
+
+            if (batchSize < 1){
+                throw new IllegalArgumentException("batchSize must be at least 1");
+            }
+
+            migrateUserEvents(Labels.qualityControl, batchSize);
+            migrateUserEvents(Labels.pathogenicity, batchSize);
+            migrateUserEvents(Labels.featurePreference, batchSize);
+            migrateDatasets(batchSize);
+            migrateVariants(batchSize);
+
+            return Response.ok().build();
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+    }
+
+    private void migrateDatasets(int batchSize){
+        ArrayList<Long> datasetNodeIds = new ArrayList<>();
+
+        //find datasets without composite key
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.dataset)) {
+
+                while (iter.hasNext()) {
+                    Node datasetNode = iter.next();
+
+                    if (!datasetNode.hasProperty("datasetKey")){
+                        datasetNodeIds.add(datasetNode.getId());
+                    }
+
+                }
+
+            }
+        }
+
+        //write keys in batches
+        for (int i = 0; i < datasetNodeIds.size(); i += batchSize){
+
+            try (Transaction tx = graphDb.beginTx()) {
+
+                for (Long datasetNodeId : datasetNodeIds.subList(i, Math.min(i + batchSize, datasetNodeIds.size()))){
+                    Node datasetNode = graphDb.getNodeById(datasetNodeId);
+                    Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+
+                    datasetNode.setProperty("datasetKey", Framework.getDatasetKey(sampleNode.getProperty("sampleId").toString(), datasetNode.getProperty("worklistId").toString(), datasetNode.getProperty("seqId").toString()));
+                }
+
+                tx.success();
+            }
+
+            log.info("Migrated " + Math.min(i + batchSize, datasetNodeIds.size()) + " of " + datasetNodeIds.size() + " datasets");
+        }
+
+    }
+
+    private void migrateVariants(int batchSize){
+        ArrayList<Long> variantNodeIds = new ArrayList<>();
+
+        //find packable variants without packed key
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.variant)) {
+
+                while (iter.hasNext()) {
+                    Node variantNode = iter.next();
+
+                    if (!variantNode.hasProperty("variantKey") && VariantKey.pack(variantNode.getProperty("variantId").toString()) != VariantKey.unpacked){
+                        variantNodeIds.add(variantNode.getId());
+                    }
+
+                }
+
+            }
+        }
+
+        //write keys in batches
+        for (int i = 0; i < variantNodeIds.size(); i += batchSize){
+
+            try (Transaction tx = graphDb.beginTx()) {
+
+                for (Long variantNodeId : variantNodeIds.subList(i, Math.min(i + batchSize, variantNodeIds.size()))){
+                    Node variantNode = graphDb.getNodeById(variantNodeId);
+                    variantNode.setProperty("variantKey", VariantKey.pack(variantNode.getProperty("variantId").toString()));
+                }
+
+                tx.success();
+            }
+
+            log.info("Migrated " + Math.min(i + batchSize, variantNodeIds.size()) + " of " + variantNodeIds.size() + " variants");
+        }
+
+    }
+
+    private void migrateUserEvents(Label label, int batchSize){
+        ArrayList<Long> eventNodeIds = new ArrayList<>();
+
+        //find events without status or subject pointer
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> iter = graphDb.findNodes(label)) {
+
+                while (iter.hasNext()) {
+                    Node eventNode = iter.next();
 
+                    if (!eventNode.hasRelationship(Relationships.hasSubject, Direction.OUTGOING) || (!eventNode.hasLabel(Labels.pendingAuth) && !eventNode.hasLabel(Labels.active) && !eventNode.hasLabel(Labels.rejected))){
+                        eventNodeIds.add(eventNode.getId());
+                    }
+
+                }
+
+            }
+        }
+
+        //write status, subject and event pointers in batches
+        for (int i = 0; i < eventNodeIds.size(); i += batchSize){
+
+            try (Transaction tx = graphDb.beginTx()) {
+
+                for (Long eventNodeId : eventNodeIds.subList(i, Math.min(i + batchSize, eventNodeIds.size()))){
+                    Node eventNode = graphDb.getNodeById(eventNodeId);
+                    Event.UserEventStatus userEventStatus = Event.getUserEventStatus(eventNode, graphDb);
+
+                    //legacy event both authorised and rejected
+                    if (userEventStatus == null){
+                        log.warn("Skipped " + label.name() + " event " + eventNodeId + " with unknown status");
+                        continue;
+                    }
+
+                    Node subjectNode = Event.getSubjectNodeFromEventNode(eventNode, graphDb);
+
+                    eventNode.addLabel(userEventStatus.label);
+                    Event.initialiseEventPointers(subjectNode, graphDb);
+
+                    if (!eventNode.hasRelationship(Relationships.hasSubject, Direction.OUTGOING)){
+                        eventNode.createRelationshipTo(subjectNode, Relationships.hasSubject);
+                    }
+                }
+
+                tx.success();
+            }
+
+            log.info("Migrated " + Math.min(i + batchSize, eventNodeIds.size()) + " of " + eventNodeIds.size() + " " + label.name() + " events");
+        }
+
+    }
+
+}
@@ -1,7 +1,6 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
 import nhs.genetics.cardiff.framework.GenomeVariant;
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -11,14 +10,29 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class for working with variants
@@ -32,11 +46,19 @@ public class Variant {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final NodeIdCache featureNodeIdCache = new NodeIdCache(Labels.feature, "featureId", 250000);
+    private static final NodeIdCache symbolNodeIdCache = new NodeIdCache(Labels.symbol, "symbolId", 100000);
+    private static final int occurrenceBatchSize = 10000;
 
-    public Variant(@Context GraphDatabaseService graphDb, @Context Log log){
+    //serialises stored occurrence updates with each other and with rebuilds
+    static final ReentrantLock occurrenceLock = new ReentrantLock();
+
+    public Variant(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers){
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     enum exac {
@@ -59,6 +81,8 @@ public class Variant {
         eaEspMaf
     }
 
+    private static final HashSet<String> frequencyKeys = getFrequencyKeys();
+
     /**
      * Adds new variant
      * @param json {variantId}
@@ -78,18 +102,601 @@ public class Variant {
             genomeVariant.convertToMinimalRepresentation();
 
             try (Transaction tx = graphDb.beginTx()) {
-                Node node = graphDb.findNode(Labels.variant, "variantId", genomeVariant.toString());
+                Node node = VariantKeyIndex.findVariantNode(genomeVariant.toString(), graphDb);
+
+                if (node == null){
+                    createVariantNode(genomeVariant.toString(), graphDb);
+                }
+
+                tx.success();
+            }
+
+            return Response.ok().build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+    }
+
+    /**
+     * Adds new variants from a stream. Lines are NDJSON {variantId}, VCF-like CHROM POS ID REF ALT or bare variantIds; # lines are skipped
+     * @param inputStream variant records
+     * @param batchSize variants per transaction
+     * @return {created, existing, total}
+     */
+    @POST
+    @Path("/add/bulk")
+    @Consumes({"application/x-ndjson", MediaType.TEXT_PLAIN})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response addBulk(final InputStream inputStream, @QueryParam("batchSize") @DefaultValue("10000") final int batchSize){
+
+        try {
+
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+            LinkedHashSet<String> batch = new LinkedHashSet<>();
+            HashMap<String, Integer> counts = new HashMap<>();
+            String line;
+            int lineNumber = 0;
+
+            counts.put("created", 0);
+            counts.put("existing", 0);
+
+            while ((line = bufferedReader.readLine()) != null){
+                lineNumber++;
+
+                if (line.trim().equals("") || line.startsWith("#")){
+                    continue;
+                }
+
+                try {
+                    for (String variantId : getVariantIds(line)){
+                        GenomeVariant genomeVariant = new GenomeVariant(variantId);
+                        genomeVariant.convertToMinimalRepresentation();
+                        batch.add(genomeVariant.toString()); //deduplicate within batch
+                    }
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Could not parse line " + lineNumber + ": " + e.getMessage());
+                }
+
+                if (batch.size() >= batchSize){
+                    addVariantBatch(batch, counts);
+                }
+
+            }
+
+            addVariantBatch(batch, counts);
+
+            counts.put("total", counts.get("created") + counts.get("existing"));
+
+            return Response.ok().entity(objectMapper.writeValueAsString(counts)).type(MediaType.APPLICATION_JSON).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+    }
+
+    private ArrayList<String> getVariantIds(String line) throws IOException {
+        ArrayList<String> variantIds = new ArrayList<>();
+
+        if (line.startsWith("{")){
+            variantIds.add(objectMapper.readTree(line).get("variantId").asText());
+            return variantIds;
+        }
+
+        String[] fields = line.split("\t");
+
+        if (fields.length < 5){
+            variantIds.add(fields[0].trim());
+            return variantIds;
+        }
+
+        //one variant per alternative allele
+        for (String alt : fields[4].split(",")){
+            variantIds.add(fields[0] + ":" + fields[1] + fields[3] + ">" + alt);
+        }
+
+        return variantIds;
+    }
+
+    private void addVariantBatch(LinkedHashSet<String> batch, HashMap<String, Integer> counts){
+        int created = 0;
+
+        if (batch.isEmpty()){
+            return;
+        }
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (String variantId : batch){
+                if (VariantKeyIndex.findVariantNode(variantId, graphDb) == null){
+                    createVariantNode(variantId, graphDb);
+                    created++;
+                }
+            }
+
+            tx.success();
+        }
+
+        counts.put("created", counts.get("created") + created);
+        counts.put("existing", counts.get("existing") + batch.size() - created);
+
+        batch.clear();
+    }
+
+    /**
+     * Creates a variant node queued for annotation. Must be called within a transaction
+     */
+    static Node createVariantNode(String variantId, GraphDatabaseService graphDb){
+        Node variantNode = graphDb.createNode(Labels.variant);
+        variantNode.addLabel(Labels.annotate); //add to annotation queue
+        variantNode.setProperty("variantId", variantId);
+        variantNode.setProperty("hetOccurrence", 0);
+        variantNode.setProperty("homOccurrence", 0);
+
+        long variantKey = VariantKey.pack(variantId);
+
+        if (variantKey != VariantKey.unpacked){
+            variantNode.setProperty("variantKey", variantKey);
+            VariantKeyIndex.put(variantKey, variantNode.getId());
+        }
+
+        return variantNode;
+    }
+
+    /**
+     * Leases variants from the annotation queue. Expired leases are reclaimed before new variants are leased
+     * @param json {count, leaseSeconds}
+     * @return Returns leased variants in genomic order
+     */
+    @POST
+    @Path("/queue/lease")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response queueLease(final String json) {
+
+        try {
+            JsonNode jsonNode = objectMapper.readTree(json);
+
+            int count = jsonNode.has("count") ? jsonNode.get("count").asInt() : 1000;
+            long leaseSeconds = jsonNode.has("leaseSeconds") ? jsonNode.get("leaseSeconds").asLong() : 3600;
+
+            if (count < 1 || leaseSeconds < 1){
+                throw new IllegalArgumentException("count and leaseSeconds must be positive");
+            }
+
+            final List<Long> variantNodeIds = AnnotationQueue.lease(count, leaseSeconds * 1000, graphDb);
+
+            StreamingOutput stream = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream os) throws IOException, WebApplicationException {
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
+
+                    jg.writeStartArray();
+
+                    try (Transaction tx = graphDb.beginTx()) {
+                        for (Long variantNodeId : variantNodeIds){
+                            Node variantNode = graphDb.getNodeById(variantNodeId);
+
+                            jg.writeStartObject();
+                            Framework.writeNodeProperties(variantNode.getId(), variantNode.getAllProperties(), variantNode.getLabels(), jg);
+                            jg.writeEndObject();
+                        }
+                    }
+
+                    jg.writeEndArray();
+
+                    jg.flush();
+                    jg.close();
+                }
+
+            };
+
+            return responseFormat.ok(stream).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
+
+    /**
+     * Writes annotations back from a stream of NDJSON records. Existing annotations for each variant are replaced and the
+     * variant is removed from the annotation queue
+     * @param inputStream {variantId, properties{}, annotations[{featureId, symbolId, canonical, feature{}, properties{}}]}
+     * @param batchSize variants per transaction
+     * @return {annotated, missing, featuresCreated, symbolsCreated}
+     */
+    @POST
+    @Path("/annotation/bulk")
+    @Consumes({"application/x-ndjson", MediaType.TEXT_PLAIN})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response annotationBulk(final InputStream inputStream, @QueryParam("batchSize") @DefaultValue("5000") final int batchSize){
+
+        try {
+
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+            ArrayList<JsonNode> batch = new ArrayList<>();
+            HashMap<String, Integer> counts = new HashMap<>();
+            String line;
+            int lineNumber = 0;
+
+            counts.put("annotated", 0);
+            counts.put("missing", 0);
+            counts.put("featuresCreated", 0);
+            counts.put("symbolsCreated", 0);
+
+            while ((line = bufferedReader.readLine()) != null){
+                lineNumber++;
+
+                if (line.trim().equals("")){
+                    continue;
+                }
+
+                try {
+                    JsonNode jsonNode = objectMapper.readTree(line);
+
+                    if (!jsonNode.has("variantId")){
+                        throw new IllegalArgumentException("variantId missing");
+                    }
+
+                    batch.add(jsonNode);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Could not parse line " + lineNumber + ": " + e.getMessage());
+                }
+
+                if (batch.size() >= batchSize){
+                    addAnnotationBatch(batch, counts);
+                }
+
+            }
+
+            addAnnotationBatch(batch, counts);
+
+            return Response.ok().entity(objectMapper.writeValueAsString(counts)).type(MediaType.APPLICATION_JSON).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+    }
+
+    private void addAnnotationBatch(ArrayList<JsonNode> batch, HashMap<String, Integer> counts){
+        int annotated = 0, missing = 0, featuresCreated = 0, symbolsCreated = 0;
+
+        //nodes created by this batch are cached only once it commits
+        HashMap<String, Node> createdFeatureNodes = new HashMap<>();
+        HashMap<String, Node> createdSymbolNodes = new HashMap<>();
+
+        if (batch.isEmpty()){
+            return;
+        }
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (JsonNode jsonNode : batch){
+                Node variantNode = VariantKeyIndex.findVariantNode(jsonNode.get("variantId").asText(), graphDb);
+
+                if (variantNode == null){
+                    missing++;
+                    continue;
+                }
+
+                setProperties(variantNode, jsonNode.get("properties"));
+
+                //replace previous annotations
+                for (Relationship relationship : variantNode.getRelationships(Direction.OUTGOING, Relationships.hasAnnotation)){
+                    relationship.delete();
+                }
+
+                if (jsonNode.has("annotations")){
+                    for (JsonNode annotationNode : jsonNode.get("annotations")){
+                        String featureId = annotationNode.get("featureId").asText();
+                        Node featureNode = createdFeatureNodes.get(featureId);
+
+                        if (featureNode == null){
+                            featureNode = featureNodeIdCache.findNode(featureId, graphDb);
+                        }
+
+                        if (featureNode == null){
+                            featureNode = graphDb.createNode(Labels.feature);
+                            featureNode.setProperty("featureId", featureId);
+                            createdFeatureNodes.put(featureId, featureNode);
+                            featuresCreated++;
+                        }
+
+                        setProperties(featureNode, annotationNode.get("feature"));
+
+                        if (annotationNode.has("canonical") && annotationNode.get("canonical").asBoolean()){
+                            featureNode.addLabel(Labels.canonical);
+                        }
+
+                        if (annotationNode.has("symbolId") && !featureNode.hasRelationship(Direction.INCOMING, Relationships.hasFeature)){
+                            String symbolId = annotationNode.get("symbolId").asText();
+                            Node symbolNode = createdSymbolNodes.get(symbolId);
+
+                            if (symbolNode == null){
+                                symbolNode = symbolNodeIdCache.findNode(symbolId, graphDb);
+                            }
+
+                            if (symbolNode == null){
+                                symbolNode = graphDb.createNode(Labels.symbol);
+                                symbolNode.setProperty("symbolId", symbolId);
+                                createdSymbolNodes.put(symbolId, symbolNode);
+                                symbolsCreated++;
+                            }
+
+                            symbolNode.createRelationshipTo(featureNode, Relationships.hasFeature);
+                        }
+
+                        Relationship hasAnnotationRelationship = variantNode.createRelationshipTo(featureNode, Relationships.hasAnnotation);
+                        setProperties(hasAnnotationRelationship, annotationNode.get("properties"));
+                    }
+                }
+
+                //dequeue
+                variantNode.removeLabel(Labels.annotate);
+                variantNode.removeLabel(Labels.queued);
+                variantNode.removeProperty("leaseExpiry");
+
+                annotated++;
+            }
+
+            tx.success();
+        }
+
+        //committed
+        for (Map.Entry<String, Node> entry : createdFeatureNodes.entrySet()){
+            featureNodeIdCache.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Node> entry : createdSymbolNodes.entrySet()){
+            symbolNodeIdCache.put(entry.getKey(), entry.getValue());
+        }
+
+        counts.put("annotated", counts.get("annotated") + annotated);
+        counts.put("missing", counts.get("missing") + missing);
+        counts.put("featuresCreated", counts.get("featuresCreated") + featuresCreated);
+        counts.put("symbolsCreated", counts.get("symbolsCreated") + symbolsCreated);
+
+        batch.clear();
+    }
+
+    private static HashSet<String> getFrequencyKeys(){
+        HashSet<String> keys = new HashSet<>();
+
+        for (exac population : exac.values()){
+            keys.add(population.toString());
+        }
+        for (oneKg population : oneKg.values()){
+            keys.add(population.toString());
+        }
+
+        return keys;
+    }
+
+    /**
+     * Copies scalar and array JSON fields to graph properties; nulls remove the property. Allele frequencies are always
+     * stored as doubles so integral values such as 0 or 1 read back the same as any other frequency
+     */
+    private static void setProperties(PropertyContainer propertyContainer, JsonNode propertiesNode){
+        if (propertiesNode == null){
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> iter = propertiesNode.getFields();
+
+        while (iter.hasNext()){
+            Map.Entry<String, JsonNode> field = iter.next();
+            JsonNode value = field.getValue();
+
+            if (value.isNull()){
+                propertyContainer.removeProperty(field.getKey());
+            } else if (value.isBoolean()){
+                propertyContainer.setProperty(field.getKey(), value.asBoolean());
+            } else if (value.isNumber() && frequencyKeys.contains(field.getKey())){
+                propertyContainer.setProperty(field.getKey(), value.asDouble());
+            } else if (value.isInt()){
+                propertyContainer.setProperty(field.getKey(), value.asInt());
+            } else if (value.isIntegralNumber()){
+                propertyContainer.setProperty(field.getKey(), value.asLong());
+            } else if (value.isNumber()){
+                propertyContainer.setProperty(field.getKey(), value.asDouble());
+            } else if (value.isArray()){
+                String[] values = new String[value.size()];
+
+                for (int i = 0; i < values.length; i++){
+                    values[i] = value.get(i).asText();
+                }
+
+                propertyContainer.setProperty(field.getKey(), values);
+            } else {
+                propertyContainer.setProperty(field.getKey(), value.asText());
+            }
+        }
+    }
+
+    /**
+     * @return Returns variant and genomic annotations
+     * @param json {variantId, fields{variant}}
+     */
+    @POST
+    @Path("/info")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response info(final String json) {
+
+        try {
+            JsonNode jsonNode = objectMapper.readTree(json);
+            Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
+
+            StreamingOutput stream = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream os) throws IOException, WebApplicationException {
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
+
+                    jg.writeStartObject();
+
+                    try (Transaction tx = graphDb.beginTx()) {
+                        Node variantNode = VariantKeyIndex.findVariantNode(jsonNode.get("variantId").asText(), graphDb);
+
+                        jg.writeObjectFieldStart("variant");
+                        Framework.writeNodeProperties(variantNode, fields.get("variant"), jg);
+                        jg.writeEndObject();
+                    }
+
+                    jg.writeEndObject();
+
+                    jg.flush();
+                    jg.close();
+                }
+
+            };
+
+            return responseFormat.ok(stream).build();
+
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
+
+    /**
+     * @return Returns observations/counts of a variant
+     * @param json {variantId, fields{sample, dataset}}
+     */
+    @POST
+    @Path("/observations")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response counts(final String json) {
+
+        try {
+            JsonNode jsonNode = objectMapper.readTree(json);
+            Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
+
+            StreamingOutput stream = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream os) throws IOException, WebApplicationException {
+
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
+
+                    jg.writeStartArray();
+
+                    try (Transaction tx = graphDb.beginTx()) {
+                        Node variantNode = VariantKeyIndex.findVariantNode(jsonNode.get("variantId").asText(), graphDb);
+                        writeObservations(variantNode, fields, jg);
+                    }
+
+                    jg.writeEndArray();
+
+                    jg.flush();
+                    jg.close();
+                }
+
+            };
+
+            return responseFormat.ok(stream).build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+    }
+
+    /**
+     * @return Returns variant info keyed by variantId; unknown variants are null
+     * @param json {variantIds[], fields{variant}}
+     */
+    @POST
+    @Path("/info/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response infoBatch(final String json) {
+
+        try {
+            JsonNode jsonNode = objectMapper.readTree(json);
+            JsonNode variantIdsNode = getVariantIdsNode(jsonNode);
+            Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
+
+            StreamingOutput stream = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream os) throws IOException, WebApplicationException {
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
+
+                    jg.writeStartObject();
+
+                    try (Transaction tx = graphDb.beginTx()) {
+                        for (JsonNode variantIdNode : variantIdsNode){
+                            Node variantNode = VariantKeyIndex.findVariantNode(variantIdNode.asText(), graphDb);
+
+                            if (variantNode == null){
+                                jg.writeNullField(variantIdNode.asText());
+                                continue;
+                            }
+
+                            jg.writeObjectFieldStart(variantIdNode.asText());
+                            Framework.writeNodeProperties(variantNode, fields.get("variant"), jg);
+                            jg.writeEndObject();
+                        }
+                    }
+
+                    jg.writeEndObject();
 
-                if (node == null){
-                    Node variantNode = graphDb.createNode(Labels.variant);
-                    variantNode.addLabel(Labels.annotate); //add to annotation queue
-                    variantNode.setProperty("variantId", genomeVariant.toString());
+                    jg.flush();
+                    jg.close();
                 }
 
-                tx.success();
-            }
+            };
 
-            return Response.ok().build();
+            return responseFormat.ok(stream).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -100,32 +707,41 @@ public class Variant {
     }
 
     /**
-     * @return Returns variant and genomic annotations
-     * @param json {variantId}
+     * @return Returns observations/counts keyed by variantId; unknown variants are null
+     * @param json {variantIds[], fields{sample, dataset}}
      */
     @POST
-    @Path("/info")
+    @Path("/observations/batch")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response info(final String json) {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response countsBatch(final String json) {
 
         try {
             JsonNode jsonNode = objectMapper.readTree(json);
+            JsonNode variantIdsNode = getVariantIdsNode(jsonNode);
+            Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     jg.writeStartObject();
 
                     try (Transaction tx = graphDb.beginTx()) {
-                        Node variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId").asText());
+                        for (JsonNode variantIdNode : variantIdsNode){
+                            Node variantNode = VariantKeyIndex.findVariantNode(variantIdNode.asText(), graphDb);
 
-                        jg.writeObjectFieldStart("variant");
-                        Framework.writeNodeProperties(variantNode.getId(), variantNode.getAllProperties(), variantNode.getLabels(), jg);
-                        jg.writeEndObject();
+                            if (variantNode == null){
+                                jg.writeNullField(variantIdNode.asText());
+                                continue;
+                            }
+
+                            jg.writeArrayFieldStart(variantIdNode.asText());
+                            writeObservations(variantNode, fields, jg);
+                            jg.writeEndArray();
+                        }
                     }
 
                     jg.writeEndObject();
@@ -136,8 +752,14 @@ public class Variant {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -145,66 +767,134 @@ public class Variant {
                     .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
                     .build();
         }
+    }
+
+    private static JsonNode getVariantIdsNode(JsonNode jsonNode){
+        JsonNode variantIdsNode = jsonNode.get("variantIds");
+
+        if (variantIdsNode == null || !variantIdsNode.isArray()){
+            throw new IllegalArgumentException("variantIds must be an array");
+        }
 
+        return variantIdsNode;
     }
 
     /**
-     * @return Returns observations/counts of a variant
-     * @param json {variantId}
+     * Writes QC passing observations of a variant. Must be called within a transaction
+     */
+    private void writeObservations(Node variantNode, Map<String, String[]> fields, JsonGenerator jg) throws IOException {
+        for (Relationship inheritanceRel : variantNode.getRelationships(Direction.INCOMING, Relationships.hasHetVariant, Relationships.hasHomVariant)) {
+            Node datasetNode = inheritanceRel.getStartNode();
+
+            if (!datasetNode.hasLabel(Labels.dataset)){
+                continue;
+            }
+
+            //check if run has passed QC
+            if (!Dataset.isQcPass(datasetNode, graphDb)){
+                continue;
+            }
+
+            Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+
+            if (sampleNode.hasLabel(Labels.sample)){
+                jg.writeStartObject();
+
+                jg.writeStringField("inheritance", Relationships.getVariantInheritance(inheritanceRel.getType().name()));
+
+                jg.writeObjectFieldStart("sample");
+                Framework.writeNodeProperties(sampleNode, fields.get("sample"), jg);
+                jg.writeEndObject();
+
+                jg.writeObjectFieldStart("dataset");
+                Framework.writeNodeProperties(datasetNode, fields.get("dataset"), jg);
+                jg.writeEndObject();
+
+                jg.writeEndObject();
+            }
+        }
+    }
+
+    /**
+     * @return Returns variants starting within contig:start-end in position order. Optionally restricted to one dataset
+     * and/or to variants observed in QC passing datasets
+     * @param json {contig, start, end, sampleId, worklistId, seqId, qcPass, fields{variant}}
      */
     @POST
-    @Path("/observations")
+    @Path("/range")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response counts(final String json) {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response range(final String json) {
 
         try {
+            JsonNode jsonNode = objectMapper.readTree(json);
+
+            if (!jsonNode.has("contig") || !jsonNode.has("start") || !jsonNode.has("end")){
+                throw new IllegalArgumentException("contig, start and end are required");
+            }
+
+            if (!jsonNode.get("start").isInt() || !jsonNode.get("end").isInt() || jsonNode.get("start").asInt() > jsonNode.get("end").asInt()){
+                throw new IllegalArgumentException("start and end must be integers with start <= end");
+            }
+
+            final boolean qcPass = jsonNode.has("qcPass") && jsonNode.get("qcPass").asBoolean();
+            final Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
+            final Node datasetNode;
+
+            try (Transaction tx = graphDb.beginTx()) {
+                datasetNode = jsonNode.has("sampleId") ? Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb) : null;
+            }
+
+            final List<Long> variantNodeIds = GenomicIntervalIndex.getVariantNodeIds(jsonNode.get("contig").asText(), jsonNode.get("start").asInt(), jsonNode.get("end").asInt(), graphDb);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-                    JsonNode jsonNode = objectMapper.readTree(json);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     jg.writeStartArray();
 
                     try (Transaction tx = graphDb.beginTx()) {
-                        Node variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId").asText());
 
-                        for (Relationship inheritanceRel : variantNode.getRelationships(Direction.INCOMING)) {
-                            Node datasetNode = inheritanceRel.getStartNode();
+                        if (datasetNode == null || !qcPass || Dataset.isQcPass(datasetNode, graphDb)){
 
-                            if (!datasetNode.hasLabel(Labels.dataset)){
-                                continue;
-                            }
+                            for (Long variantNodeId : variantNodeIds){
+                                Node variantNode = graphDb.getNodeById(variantNodeId);
+                                String inheritance = null;
+                                int occurrence = 0;
 
-                            //check if run has passed QC
-                            Node qcNode = Event.getLastActiveUserEventNode(datasetNode, graphDb);
-                            if (qcNode == null || !(boolean) qcNode.getProperty("passOrFail")){
-                                continue;
-                            }
+                                if (datasetNode != null){
+                                    Relationship inheritanceRelationship = getInheritanceRelationship(datasetNode, variantNode);
 
-                            if (datasetNode.hasLabel(Labels.dataset)){
-                                Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+                                    if (inheritanceRelationship == null){
+                                        continue;
+                                    }
 
-                                if (sampleNode.hasLabel(Labels.sample)){
-                                    jg.writeStartObject();
+                                    inheritance = Relationships.getVariantInheritance(inheritanceRelationship.getType().name());
 
-                                    jg.writeStringField("inheritance", Relationships.getVariantInheritance(inheritanceRel.getType().name()));
+                                } else if (qcPass){
+                                    occurrence = getGlobalVariantOccurrenceQcPass(variantNode, graphDb);
 
-                                    jg.writeObjectFieldStart("sample");
-                                    Framework.writeNodeProperties(sampleNode.getId(), sampleNode.getAllProperties(), sampleNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                                    if (occurrence == 0){
+                                        continue;
+                                    }
 
-                                    jg.writeObjectFieldStart("dataset");
-                                    Framework.writeNodeProperties(datasetNode.getId(), datasetNode.getAllProperties(), datasetNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                                }
+
+                                jg.writeStartObject();
 
-                                    jg.writeEndObject();
+                                jg.writeObjectFieldStart("variant");
+                                Framework.writeNodeProperties(variantNode, fields.get("variant"), jg);
+                                jg.writeEndObject();
+
+                                if (inheritance != null){
+                                    jg.writeStringField("inheritance", inheritance);
+                                } else if (qcPass){
+                                    jg.writeNumberField("occurrence", occurrence);
                                 }
 
+                                jg.writeEndObject();
                             }
 
                         }
@@ -219,7 +909,14 @@ public class Variant {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
         } catch (Exception e) {
             log.error(e.getMessage());
             return Response
@@ -227,31 +924,33 @@ public class Variant {
                     .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
                     .build();
         }
+
     }
 
     /**
      * @return Returns all variant annotations
-     * @param json {variantId}
+     * @param json {variantId, fields{annotation, feature, symbol}}
      */
     @POST
     @Path("/annotation")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
     public Response annotation(final String json) {
 
         try {
             JsonNode jsonNode = objectMapper.readTree(json);
+            Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
                     jg.writeStartArray();
 
                     try (Transaction tx = graphDb.beginTx()) {
-                        Node variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId").asText());
+                        Node variantNode = VariantKeyIndex.findVariantNode(jsonNode.get("variantId").asText(), graphDb);
 
                         for (Relationship relationship : variantNode.getRelationships(Direction.OUTGOING, Relationships.hasAnnotation)){
                             Node featureNode = relationship.getEndNode();
@@ -260,11 +959,11 @@ public class Variant {
                             jg.writeStartObject();
 
                             jg.writeObjectFieldStart("annotation");
-                            Framework.writeRelationshipProperties(relationship.getId(), relationship.getAllProperties(), relationship.getType().name(), jg);
+                            Framework.writeRelationshipProperties(relationship, fields.get("annotation"), jg);
                             jg.writeEndObject();
 
                             jg.writeObjectFieldStart("feature");
-                            Framework.writeNodeProperties(featureNode.getId(), featureNode.getAllProperties(), featureNode.getLabels(), jg);
+                            Framework.writeNodeProperties(featureNode, fields.get("feature"), jg);
                             jg.writeEndObject();
 
                             jg.writeObjectFieldStart("featurePreference");
@@ -272,7 +971,7 @@ public class Variant {
                             jg.writeEndObject();
 
                             jg.writeObjectFieldStart("symbol");
-                            Framework.writeNodeProperties(symbolNode.getId(), symbolNode.getAllProperties(), symbolNode.getLabels(), jg);
+                            Framework.writeNodeProperties(symbolNode, fields.get("symbol"), jg);
                             jg.writeEndObject();
 
                             jg.writeEndObject();
@@ -288,7 +987,7 @@ public class Variant {
 
             };
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            return responseFormat.ok(stream).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -323,44 +1022,25 @@ public class Variant {
             }
 
             try (Transaction tx = graphDb.beginTx()) {
-                variantNode = graphDb.findNode(Labels.variant, "variantId", jsonNode.get("variantId").asText());
+                variantNode = VariantKeyIndex.findVariantNode(jsonNode.get("variantId").asText(), graphDb);
                 userNode = graphDb.findNode(Labels.user, "email", jsonNode.get("email").asText());
             }
 
-            //check variant does not already have outstanding auths
-            Node lastEventNode = Event.getLastUserEventNode(variantNode, graphDb);
+            //add properties
+            HashMap<String, Object> properties = new HashMap<>();
+            properties.put("classification", classification);
 
-            if (lastEventNode.getId() != variantNode.getId()){
-                Event.UserEventStatus status = Event.getUserEventStatus(lastEventNode, graphDb);
+            if (jsonNode.has("evidence")) {
+                String evidence = jsonNode.get("evidence").asText();
 
-                if (status == Event.UserEventStatus.PENDING_AUTH){
-                    throw new IllegalArgumentException("Cannot add pathogenicity. Auth pending.");
+                if (!evidence.equals("")){
+                    properties.put("evidence", evidence);
                 }
 
             }
 
-            try (Transaction tx = graphDb.beginTx()) {
-                Node newEventNode = graphDb.createNode(Labels.pathogenicity);
-
-                //add properties
-                newEventNode.setProperty("classification", classification);
-
-                if (jsonNode.has("evidence")) {
-                    String evidence = jsonNode.get("evidence").asText();
-
-                    if (!evidence.equals("")){
-                        newEventNode.setProperty("evidence", jsonNode.get("evidence").asText());
-                    }
-
-                }
-
-                Relationship addedByRelationship = newEventNode.createRelationshipTo(userNode, Relationships.addedBy);
-                addedByRelationship.setProperty("date", new Date().getTime());
-
-                lastEventNode.createRelationshipTo(newEventNode, Relationships.hasEvent);
-
-                tx.success();
-            }
+            //add event
+            Event.addUserEvent(variantNode, Labels.pathogenicity, "pathogenicity", properties, userNode, graphDb);
 
             return Response.status(Response.Status.OK).build();
 
@@ -382,66 +1062,191 @@ public class Variant {
 
     /**
      * @return Returns all variants with pending pathogenicity requiring auth
+     * @param limit page size, cursor continuation token from the previous page, fields variant:key,key;pathogenicity:key;user:key
      */
     @GET
     @Path("/pathogenicity/pending/auth")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getPathogenicityPendingAuth() {
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    public Response getPathogenicityPendingAuth(@QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @QueryParam("fields") final String fields) {
 
         try {
+            final ResponseFormat format = responseFormat.withNdjson();
+            final Map<String, String[]> projection = Framework.getFields(fields);
+            final long after = Framework.decodeCursor(cursor, limit);
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
 
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = format.createJsonGenerator(os);
 
-                    jg.writeStartArray();
+                    String nextCursor;
+
+                    format.writeStartList(limit != null, jg);
 
                     try (Transaction tx = graphDb.beginTx()) {
-                        try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.pathogenicity)){
+                        List<Long> pathogenicityNodeIds = Framework.getPage(Event.getPendingAuthEventNodeIds(Labels.pathogenicity, graphDb), after, limit);
 
-                            while (iter.hasNext()) {
-                                Node pathogenicityNode = iter.next();
+                        for (Long pathogenicityNodeId : pathogenicityNodeIds) {
+                            Node pathogenicityNode = graphDb.getNodeById(pathogenicityNodeId);
 
-                                if (Event.getUserEventStatus(pathogenicityNode, graphDb) == Event.UserEventStatus.PENDING_AUTH){
+                            Relationship addedByRelationship = pathogenicityNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
 
-                                    Relationship addedByRelationship = pathogenicityNode.getSingleRelationship(Relationships.addedBy, Direction.OUTGOING);
+                            jg.writeStartObject();
+
+                            Node variantNode = Event.getSubjectNodeFromEventNode(pathogenicityNode, graphDb);
+                            jg.writeObjectFieldStart("variant");
+                            Framework.writeNodeProperties(variantNode, projection.get("variant"), jg);
+                            jg.writeEndObject();
 
-                                    jg.writeStartObject();
+                            jg.writeObjectFieldStart("pathogenicity");
+                            Framework.writeNodeProperties(pathogenicityNode, projection.get("pathogenicity"), jg);
+                            jg.writeEndObject();
 
-                                    Node variantNode = Event.getSubjectNodeFromEventNode(pathogenicityNode, graphDb);
-                                    jg.writeObjectFieldStart("variant");
-                                    Framework.writeNodeProperties(variantNode.getId(), variantNode.getAllProperties(), variantNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            Event.writeAddedBy(addedByRelationship, projection.get("user"), jg);
 
-                                    jg.writeObjectFieldStart("pathogenicity");
-                                    Framework.writeNodeProperties(pathogenicityNode.getId(), pathogenicityNode.getAllProperties(), pathogenicityNode.getLabels(), jg);
-                                    jg.writeEndObject();
+                            jg.writeEndObject();
+                            format.writeEndRecord(jg);
+                        }
 
-                                    Node addedByUserNode = addedByRelationship.getEndNode();
-                                    Event.writeAddedBy(addedByUserNode.getId(), addedByUserNode.getProperties("fullName", "email", "admin"), addedByUserNode.getLabels(), (long) addedByRelationship.getProperty("date"), jg);
+                        nextCursor = Framework.getNextCursor(pathogenicityNodeIds, limit);
+                    }
 
-                                    jg.writeEndObject();
+                    format.writeEndList(limit != null, nextCursor, jg);
 
-                                }
+                    jg.flush();
+                    jg.close();
 
-                            }
+                }
+
+            };
+
+            return format.ok(stream).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
+
+    /**
+     * Recounts stored QC passing occurrence for all variants. Batches are counted in parallel, each in its own transaction,
+     * and block QC occurrence updates until the rebuild completes
+     * @param json {batchSize, threads}
+     * @return response code
+     */
+    @POST
+    @Path("/occurrence/rebuild")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response occurrenceRebuild(final String json) {
+
+        try {
+
+            JsonNode jsonNode = objectMapper.readTree(json);
+            int batchSize = jsonNode.has("batchSize") ? jsonNode.get("batchSize").asInt() : occurrenceBatchSize;
+            int maxThreads = Runtime.getRuntime().availableProcessors();
+            int threads = jsonNode.has("threads") ? jsonNode.get("threads").asInt() : maxThreads;
+            ArrayList<Long> variantNodeIds = new ArrayList<>();
+            ArrayList<Future<Integer>> futures = new ArrayList<>();
+
+            if (batchSize < 1){
+                throw new IllegalArgumentException("batchSize must be at least 1");
+            }
+
+            if (threads < 1 || threads > maxThreads){
+                throw new IllegalArgumentException("threads must be between 1 and " + maxThreads);
+            }
+
+            occurrenceLock.lock();
+
+            ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+            try {
 
+                try (Transaction tx = graphDb.beginTx()) {
+                    try (ResourceIterator<Node> iter = graphDb.findNodes(Labels.variant)) {
+                        while (iter.hasNext()) {
+                            variantNodeIds.add(iter.next().getId());
                         }
                     }
+                }
 
-                    jg.writeEndArray();
+                for (int i = 0; i < variantNodeIds.size(); i += batchSize){
+                    final List<Long> batch = variantNodeIds.subList(i, Math.min(i + batchSize, variantNodeIds.size()));
 
-                    jg.flush();
-                    jg.close();
+                    futures.add(executorService.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            recountGlobalVariantOccurrenceQcPass(batch, graphDb);
+                            return batch.size();
+                        }
+                    }));
+                }
+
+                int counted = 0;
+
+                for (Future<Integer> future : futures){
+                    try {
+                        counted += future.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
 
+                    log.info("Counted " + counted + " of " + variantNodeIds.size() + " variants");
                 }
 
-            };
+            } finally {
+                executorService.shutdownNow();
+                occurrenceLock.unlock();
+            }
+
+            return Response.status(Response.Status.OK).build();
+
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
+
+    /**
+     * Rebuilds the columnar population frequency store from variant properties
+     * @return {variants}
+     */
+    @POST
+    @Path("/frequency/rebuild")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response frequencyRebuild() {
+
+        try {
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            HashMap<String, Integer> counts = new HashMap<>();
+            counts.put("variants", FrequencyStore.build(graphDb));
+
+            log.info("Stored frequencies for " + counts.get("variants") + " variants");
+
+            return Response.ok().entity(objectMapper.writeValueAsString(counts)).type(MediaType.APPLICATION_JSON).build();
 
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -453,43 +1258,180 @@ public class Variant {
 
     }
 
+    /**
+     * Walks whichever side has fewer genotype relationships, so common variants are not checked carrier by carrier.
+     * Must be called within a transaction
+     * @return Returns the dataset's genotype relationship to the variant, or null if it does not carry it
+     */
+    private static Relationship getInheritanceRelationship(Node datasetNode, Node variantNode){
+        int datasetDegree = datasetNode.getDegree(Relationships.hasHetVariant, Direction.OUTGOING) + datasetNode.getDegree(Relationships.hasHomVariant, Direction.OUTGOING);
+        int variantDegree = variantNode.getDegree(Relationships.hasHetVariant, Direction.INCOMING) + variantNode.getDegree(Relationships.hasHomVariant, Direction.INCOMING);
+
+        if (variantDegree <= datasetDegree){
+            for (Relationship relationship : variantNode.getRelationships(Direction.INCOMING, Relationships.hasHetVariant, Relationships.hasHomVariant)){
+                if (relationship.getStartNode().getId() == datasetNode.getId()){
+                    return relationship;
+                }
+            }
+        } else {
+            for (Relationship relationship : datasetNode.getRelationships(Direction.OUTGOING, Relationships.hasHetVariant, Relationships.hasHomVariant)){
+                if (relationship.getEndNode().getId() == variantNode.getId()){
+                    return relationship;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Returns allele count in QC passing samples. Must be called within a transaction
+     */
     static int getGlobalVariantOccurrenceQcPass(Node variantNode, GraphDatabaseService graphDb){
-        int occurrence = 0;
+        int[] occurrence;
+
+        if (variantNode.hasProperty("hetOccurrence") && variantNode.hasProperty("homOccurrence")){
+            return (int) variantNode.getProperty("hetOccurrence") + (2 * (int) variantNode.getProperty("homOccurrence"));
+        }
 
-        HashSet<String> sampleIds = new HashSet<>();
+        //counts not yet built
+        occurrence = countGlobalVariantOccurrenceQcPass(variantNode, graphDb);
 
+        return occurrence[0] + (2 * occurrence[1]);
+    }
+
+    /**
+     * Recounts a batch of variants in one transaction. Each variant is locked before counting so concurrent genotype writes
+     * cannot interleave with the count
+     */
+    private static void recountGlobalVariantOccurrenceQcPass(List<Long> variantNodeIds, GraphDatabaseService graphDb){
         try (Transaction tx = graphDb.beginTx()) {
-            for (Relationship relationship : variantNode.getRelationships(Direction.INCOMING)) {
-                Node datasetNode = relationship.getStartNode();
 
-                if (datasetNode.hasLabel(Labels.dataset)) {
+            for (Long variantNodeId : variantNodeIds){
+                Node variantNode = graphDb.getNodeById(variantNodeId);
 
-                    //check if run has passed QC
-                    Node qcNode = Event.getLastActiveUserEventNode(datasetNode, graphDb);
-                    if (qcNode == null || !(boolean) qcNode.getProperty("passOrFail")){
-                        continue;
+                tx.acquireWriteLock(variantNode);
+
+                int[] occurrence = countGlobalVariantOccurrenceQcPass(variantNode, graphDb);
+
+                variantNode.setProperty("hetOccurrence", occurrence[0]);
+                variantNode.setProperty("homOccurrence", occurrence[1]);
+            }
+
+            tx.success();
+        }
+    }
+
+    /**
+     * Counts QC passing samples carrying a variant. Each sample is counted once using the genotype of its lowest id QC passing dataset.
+     * Must be called within a transaction
+     * @return {het, hom}
+     */
+    private static int[] countGlobalVariantOccurrenceQcPass(Node variantNode, GraphDatabaseService graphDb){
+        int[] occurrence = new int[2];
+        HashMap<Long, Relationship> sampleRelationships = new HashMap<>();
+
+        for (Relationship relationship : variantNode.getRelationships(Direction.INCOMING, Relationships.hasHetVariant, Relationships.hasHomVariant)) {
+            Node datasetNode = relationship.getStartNode();
+
+            //check if run has passed QC
+            if (!Dataset.isQcPass(datasetNode, graphDb)){
+                continue;
+            }
+
+            Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+            Relationship countedRelationship = sampleRelationships.get(sampleNode.getId());
+
+            if (countedRelationship == null || countedRelationship.getStartNode().getId() > datasetNode.getId()){
+                sampleRelationships.put(sampleNode.getId(), relationship);
+            }
+
+        }
+
+        for (Relationship relationship : sampleRelationships.values()){
+            if (relationship.isType(Relationships.hasHetVariant)) {
+                occurrence[0]++;
+            } else {
+                occurrence[1]++;
+            }
+        }
+
+        return occurrence;
+    }
+
+    /**
+     * Adjusts stored occurrence counts of all variants in a dataset after its QC outcome has been committed. Variants are
+     * adjusted in batches, each in its own transaction; the caller must hold occurrenceLock. A failure part way through leaves
+     * counts stale until the next occurrence rebuild
+     */
+    static void updateGlobalVariantOccurrenceQcPass(Node datasetNode, boolean qcPass, GraphDatabaseService graphDb){
+        HashMap<Long, Relationship> sampleRelationships = new HashMap<>();
+        ArrayList<Relationship> inheritanceRelationships = new ArrayList<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+
+            //genotypes counted through the sample's other QC passing datasets
+            for (Relationship hasDataRelationship : sampleNode.getRelationships(Direction.OUTGOING, Relationships.hasData)){
+                Node otherDatasetNode = hasDataRelationship.getEndNode();
+
+                if (otherDatasetNode.getId() == datasetNode.getId() || !Dataset.isQcPass(otherDatasetNode, graphDb)){
+                    continue;
+                }
+
+                for (Relationship relationship : otherDatasetNode.getRelationships(Direction.OUTGOING, Relationships.hasHetVariant, Relationships.hasHomVariant)){
+                    Relationship countedRelationship = sampleRelationships.get(relationship.getEndNode().getId());
+
+                    if (countedRelationship == null || countedRelationship.getStartNode().getId() > otherDatasetNode.getId()){
+                        sampleRelationships.put(relationship.getEndNode().getId(), relationship);
                     }
+                }
+
+            }
+
+            for (Relationship relationship : datasetNode.getRelationships(Direction.OUTGOING, Relationships.hasHetVariant, Relationships.hasHomVariant)){
+                inheritanceRelationships.add(relationship);
+            }
+
+        }
+
+        for (int i = 0; i < inheritanceRelationships.size(); i += occurrenceBatchSize){
+
+            try (Transaction tx = graphDb.beginTx()) {
 
-                    Node sampleNode = datasetNode.getSingleRelationship(Relationships.hasData, Direction.INCOMING).getStartNode();
+                for (Relationship relationship : inheritanceRelationships.subList(i, Math.min(i + occurrenceBatchSize, inheritanceRelationships.size()))){
+                    Node variantNode = relationship.getEndNode();
 
-                    if (sampleIds.contains(sampleNode.getProperty("sampleId").toString())){
+                    //counts not yet built
+                    if (!variantNode.hasProperty("hetOccurrence") || !variantNode.hasProperty("homOccurrence")){
                         continue;
-                    } else {
-                        sampleIds.add(sampleNode.getProperty("sampleId").toString());
                     }
 
-                    if (relationship.isType(Relationships.hasHetVariant)) {
-                        occurrence += 1;
-                    } else if (relationship.isType(Relationships.hasHomVariant)) {
-                        occurrence += 2;
+                    Relationship countedRelationship = sampleRelationships.get(variantNode.getId());
+
+                    if (countedRelationship == null){
+                        addGlobalVariantOccurrence(variantNode, relationship, qcPass ? 1 : -1, tx);
+                    } else if (datasetNode.getId() < countedRelationship.getStartNode().getId()){
+
+                        //lowest id dataset carries the sample genotype
+                        addGlobalVariantOccurrence(variantNode, qcPass ? countedRelationship : relationship, -1, tx);
+                        addGlobalVariantOccurrence(variantNode, qcPass ? relationship : countedRelationship, 1, tx);
                     }
 
                 }
 
+                tx.success();
             }
+
         }
 
-        return occurrence;
+    }
+
+    private static void addGlobalVariantOccurrence(Node variantNode, Relationship inheritanceRelationship, int value, Transaction tx){
+        String key = inheritanceRelationship.isType(Relationships.hasHetVariant) ? "hetOccurrence" : "homOccurrence";
+
+        tx.acquireWriteLock(variantNode);
+        variantNode.setProperty(key, (int) variantNode.getProperty(key) + value);
     }
 
 }
@@ -0,0 +1,41 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import java.io.File;
+
+/**
+ * Kernel extension started with the database, before it accepts transactions. Registers transaction event handlers
+ * that must observe every commit, not only those made after the first request
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+public class VariantDatabaseExtensionFactory extends KernelExtensionFactory<VariantDatabaseExtensionFactory.Dependencies> {
+
+    public interface Dependencies {
+        GraphDatabaseService getGraphDatabaseService();
+    }
+
+    public VariantDatabaseExtensionFactory(){
+        super("variantdatabase");
+    }
+
+    @Override
+    public Lifecycle newInstance(KernelContext context, final Dependencies dependencies) throws Throwable {
+        final File storeDir = context.storeDir();
+
+        return new LifecycleAdapter() {
+            @Override
+            public void start() throws Throwable {
+                FrequencyStore.start(dependencies.getGraphDatabaseService(), storeDir);
+            }
+        };
+    }
+
+}
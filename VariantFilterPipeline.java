@@ -0,0 +1,284 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.codehaus.jackson.JsonNode;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayList;
+
+/**
+ * An ordered chain of variant filter stages. Stages are compiled once per workflow and evaluated per variant;
+ * the first stage to reject or accept a variant ends evaluation.
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class VariantFilterPipeline {
+
+    enum StageResult {
+        CONTINUE, ACCEPT, REJECT
+    }
+
+    static final VariantFilterPipeline rare = new VariantFilterPipeline(new Stage[]{
+            new ClassificationStage("Class 1", new int[]{1}),
+            new FrequencyStage("ExAC >1% Frequency", getPopulations(Variant.exac.values()), 0.01),
+            new FrequencyStage("1KG >1% Frequency", getPopulations(Variant.oneKg.values()), 0.01)
+    });
+
+    private final Stage[] stages;
+    private final String[] keys;
+
+    private VariantFilterPipeline(Stage[] stages){
+        this.stages = stages;
+        this.keys = new String[stages.length + 1];
+
+        for (int i = 0; i < stages.length; i++){
+            keys[i] = stages[i].key;
+        }
+
+        keys[stages.length] = "Pass";
+    }
+
+    /**
+     * @param stagesNode [{type:classification, key, fail:[classification]}, {type:frequency, key, populations:exac|oneKg|[property], max}, {type:occurrence, key, max}]
+     * @return compiled pipeline
+     */
+    static VariantFilterPipeline compile(JsonNode stagesNode){
+        ArrayList<Stage> stages = new ArrayList<>();
+
+        if (stagesNode == null || !stagesNode.isArray()){
+            throw new IllegalArgumentException("Workflow stages must be an array");
+        }
+
+        for (JsonNode stageNode : stagesNode){
+            if (!stageNode.isObject()){
+                throw new IllegalArgumentException("Workflow stage must be an object");
+            }
+
+            String type = getRequiredField(stageNode, "type").asText();
+            String key = stageNode.has("key") ? stageNode.get("key").asText() : type;
+
+            switch (type) {
+                case "classification":
+                    JsonNode failNode = getRequiredField(stageNode, "fail");
+
+                    if (!failNode.isArray()){
+                        throw new IllegalArgumentException("Workflow stage " + key + " fail must be an array");
+                    }
+
+                    int[] classifications = new int[failNode.size()];
+
+                    for (int i = 0; i < classifications.length; i++){
+                        if (!failNode.get(i).isInt()){
+                            throw new IllegalArgumentException("Workflow stage " + key + " fail must contain classifications 1-5");
+                        }
+
+                        classifications[i] = failNode.get(i).asInt();
+                    }
+
+                    stages.add(new ClassificationStage(key, classifications));
+                    break;
+                case "frequency":
+                    stages.add(new FrequencyStage(key, getPopulations(getRequiredField(stageNode, "populations")), getRequiredNumber(stageNode, "max").asDouble()));
+                    break;
+                case "occurrence":
+                    stages.add(new OccurrenceStage(key, getRequiredNumber(stageNode, "max").asInt()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workflow stage: " + type);
+            }
+
+        }
+
+        return new VariantFilterPipeline(stages.toArray(new Stage[stages.size()]));
+    }
+
+    private static JsonNode getRequiredField(JsonNode stageNode, String field){
+        JsonNode fieldNode = stageNode.get(field);
+
+        if (fieldNode == null || fieldNode.isNull()){
+            throw new IllegalArgumentException("Workflow stage missing " + field);
+        }
+
+        return fieldNode;
+    }
+
+    private static JsonNode getRequiredNumber(JsonNode stageNode, String field){
+        JsonNode fieldNode = getRequiredField(stageNode, field);
+
+        if (!fieldNode.isNumber()){
+            throw new IllegalArgumentException("Workflow stage " + field + " must be a number");
+        }
+
+        return fieldNode;
+    }
+
+    /**
+     * @return Returns filter keys. Index matches evaluate result; the last key counts passing variants
+     */
+    String[] getKeys(){
+        return keys;
+    }
+
+    /**
+     * @return Returns index of the rejecting stage, or the number of stages if the variant passes
+     */
+    int evaluate(Node variantNode, int occurrence, GraphDatabaseService graphDb){
+        for (int i = 0; i < stages.length; i++){
+            StageResult stageResult = stages[i].evaluate(variantNode, occurrence, graphDb);
+
+            if (stageResult == StageResult.REJECT){
+                return i;
+            } else if (stageResult == StageResult.ACCEPT){
+                return stages.length;
+            }
+        }
+
+        return stages.length;
+    }
+
+    private static String[] getPopulations(Enum<?>[] populations){
+        String[] keys = new String[populations.length];
+
+        for (int i = 0; i < populations.length; i++){
+            keys[i] = populations[i].toString();
+        }
+
+        return keys;
+    }
+
+    private static String[] getPopulations(JsonNode populationsNode){
+        if (populationsNode.isTextual()){
+            switch (populationsNode.asText()) {
+                case "exac":
+                    return getPopulations(Variant.exac.values());
+                case "oneKg":
+                    return getPopulations(Variant.oneKg.values());
+                default:
+                    throw new IllegalArgumentException("Unknown population group: " + populationsNode.asText());
+            }
+        }
+
+        if (!populationsNode.isArray() || populationsNode.size() == 0){
+            throw new IllegalArgumentException("Workflow stage populations must be exac, oneKg or an array of population properties");
+        }
+
+        String[] keys = new String[populationsNode.size()];
+
+        for (int i = 0; i < keys.length; i++){
+            if (!populationsNode.get(i).isTextual()){
+                throw new IllegalArgumentException("Workflow stage populations must be an array of population properties");
+            }
+
+            keys[i] = populationsNode.get(i).asText();
+        }
+
+        return keys;
+    }
+
+    private static abstract class Stage {
+        final String key;
+
+        Stage(String key){
+            this.key = key;
+        }
+
+        abstract StageResult evaluate(Node variantNode, int occurrence, GraphDatabaseService graphDb);
+    }
+
+    /**
+     * Rejects variants with an active classification in the fail list and accepts any other classified variant
+     */
+    private static class ClassificationStage extends Stage {
+        private final boolean[] fail = new boolean[6];
+
+        ClassificationStage(String key, int[] classifications){
+            super(key);
+
+            for (int classification : classifications){
+                if (classification < 1 || classification > 5){
+                    throw new IllegalArgumentException("Classification: " + classification + " invalid. Accepted values 1-5.");
+                }
+                fail[classification] = true;
+            }
+        }
+
+        @Override
+        StageResult evaluate(Node variantNode, int occurrence, GraphDatabaseService graphDb){
+            Node lastActiveEventNode = Event.getLastActiveUserEventNode(variantNode, graphDb);
+
+            if (lastActiveEventNode == null || !lastActiveEventNode.hasProperty("classification")){
+                return StageResult.CONTINUE;
+            }
+
+            Object classification = lastActiveEventNode.getProperty("classification");
+
+            //treat values outside 1-5 as unclassified
+            if (!(classification instanceof Number) || ((Number) classification).intValue() < 1 || ((Number) classification).intValue() > 5){
+                return StageResult.CONTINUE;
+            }
+
+            return fail[((Number) classification).intValue()] ? StageResult.REJECT : StageResult.ACCEPT;
+        }
+    }
+
+    /**
+     * Rejects variants with an allele frequency above the ceiling in any population. Reads the columnar frequency
+     * store where possible and node properties otherwise
+     */
+    private static class FrequencyStage extends Stage {
+        private final String[] populations;
+        private final double maxAlleleFrequency;
+        private final int[] columns;
+        private final int maxColumn;
+
+        FrequencyStage(String key, String[] populations, double maxAlleleFrequency){
+            super(key);
+            this.populations = populations;
+            this.maxAlleleFrequency = maxAlleleFrequency;
+            this.columns = FrequencyStore.getColumns(populations);
+            this.maxColumn = FrequencyStore.getMaxColumn(populations);
+        }
+
+        @Override
+        StageResult evaluate(Node variantNode, int occurrence, GraphDatabaseService graphDb){
+            if (columns != null){
+                int exceeds = FrequencyStore.exceeds(variantNode.getId(), columns, maxColumn, (float) maxAlleleFrequency, graphDb);
+
+                if (exceeds != -1){
+                    return exceeds == 1 ? StageResult.REJECT : StageResult.CONTINUE;
+                }
+            }
+
+            for (String population : populations){
+                Object alleleFrequency = variantNode.getProperty(population, null);
+
+                //frequencies written before they were coerced to double may be integral
+                if (alleleFrequency instanceof Number && ((Number) alleleFrequency).doubleValue() > maxAlleleFrequency){
+                    return StageResult.REJECT;
+                }
+            }
+
+            return StageResult.CONTINUE;
+        }
+    }
+
+    /**
+     * Rejects variants observed more often than the cap in QC passing samples
+     */
+    private static class OccurrenceStage extends Stage {
+        private final int maxOccurrence;
+
+        OccurrenceStage(String key, int maxOccurrence){
+            super(key);
+            this.maxOccurrence = maxOccurrence;
+        }
+
+        @Override
+        StageResult evaluate(Node variantNode, int occurrence, GraphDatabaseService graphDb){
+            return occurrence > maxOccurrence ? StageResult.REJECT : StageResult.CONTINUE;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+/**
+ * Genomic sort key parsed from a minimal representation variantId e.g. 1:12345A>G. SNVs and short indels on
+ * primary contigs also pack into a single long: contig (5 bits), position (28 bits), ref/alt lengths (3 bits each)
+ * and up to 12 ref+alt bases (2 bits each)
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class VariantKey implements Comparable<VariantKey> {
+
+    static final long unpacked = -1L;
+    private static final int maxPosition = (1 << 28) - 1;
+    private static final int maxAlleleLength = 7;
+    private static final int maxBases = 12;
+    private static final String[] contigNames = {
+            null, "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18",
+            "19", "20", "21", "22", "X", "Y", "MT"
+    };
+
+    private final String contig;
+    private final int contigIndex;
+    private final int position;
+
+    private VariantKey(String contig, int position){
+        this.contig = contig;
+        this.contigIndex = getContigIndex(contig);
+        this.position = position;
+    }
+
+    static VariantKey parse(String variantId){
+        int colon = variantId.indexOf(':');
+
+        if (colon < 1){
+            throw new IllegalArgumentException("Could not parse variantId: " + variantId);
+        }
+
+        int end = colon + 1;
+
+        while (end < variantId.length() && Character.isDigit(variantId.charAt(end))){
+            end++;
+        }
+
+        if (end == colon + 1){
+            throw new IllegalArgumentException("Could not parse variantId: " + variantId);
+        }
+
+        return new VariantKey(variantId.substring(0, colon), Integer.parseInt(variantId.substring(colon + 1, end)));
+    }
+
+    /**
+     * @return Returns the packed key, or unpacked if the variant does not fit
+     */
+    static long pack(String variantId){
+        int colon = variantId.indexOf(':');
+        int arrow = variantId.indexOf('>');
+
+        if (colon < 1 || arrow < colon){
+            return unpacked;
+        }
+
+        String contig = variantId.substring(0, colon);
+        int contigIndex = getContigIndex(contig);
+        int end = colon + 1;
+
+        //only canonical contig names and positions pack so keys stay one-to-one with variantIds
+        if (contigIndex == 0 || !contig.equals(contigNames[contigIndex]) || variantId.charAt(end) == '0'){
+            return unpacked;
+        }
+
+        while (end < arrow && Character.isDigit(variantId.charAt(end))){
+            end++;
+        }
+
+        if (end == colon + 1 || end - colon - 1 > 9){
+            return unpacked;
+        }
+
+        int position = Integer.parseInt(variantId.substring(colon + 1, end));
+        String ref = variantId.substring(end, arrow);
+        String alt = variantId.substring(arrow + 1);
+
+        if (position > maxPosition || ref.length() > maxAlleleLength || alt.length() > maxAlleleLength || ref.length() + alt.length() > maxBases){
+            return unpacked;
+        }
+
+        long bases = 0;
+
+        for (int i = 0; i < ref.length() + alt.length(); i++){
+            int base = getBaseIndex(i < ref.length() ? ref.charAt(i) : alt.charAt(i - ref.length()));
+
+            if (base < 0){
+                return unpacked;
+            }
+
+            bases = (bases << 2) | base;
+        }
+
+        bases <<= 2 * (maxBases - ref.length() - alt.length());
+
+        return ((long) contigIndex << 58) | ((long) position << 30) | ((long) ref.length() << 27) | ((long) alt.length() << 24) | bases;
+    }
+
+    private static int getBaseIndex(char base){
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return Returns 1-22, X=23, Y=24, MT=25 or 0 for other contigs
+     */
+    static int getContigIndex(String contig){
+        if (contig.startsWith("chr")){
+            contig = contig.substring(3);
+        }
+
+        switch (contig) {
+            case "X":
+                return 23;
+            case "Y":
+                return 24;
+            case "M":
+            case "MT":
+                return 25;
+        }
+
+        try {
+            int contigIndex = Integer.parseInt(contig);
+            return contigIndex >= 1 && contigIndex <= 22 ? contigIndex : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    String getContig(){
+        return contig;
+    }
+
+    int getPosition(){
+        return position;
+    }
+
+    @Override
+    public int compareTo(VariantKey other){
+        //unplaced contigs sort last
+        int thisIndex = contigIndex == 0 ? Integer.MAX_VALUE : contigIndex;
+        int otherIndex = other.contigIndex == 0 ? Integer.MAX_VALUE : other.contigIndex;
+
+        if (thisIndex != otherIndex){
+            return Integer.compare(thisIndex, otherIndex);
+        }
+
+        if (contigIndex == 0 && !contig.equals(other.contig)){
+            return contig.compareTo(other.contig);
+        }
+
+        return Integer.compare(position, other.position);
+    }
+
+}
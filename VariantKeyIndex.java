@@ -0,0 +1,118 @@
+package nhs.genetics.cardiff.variantdatabase.plugin;
+
+import org.neo4j.graphdb.*;
+
+/**
+ * Process-wide primitive map of packed variant keys to node ids, backed by the variantKey schema index. Hits are
+ * checked against the node so deleted nodes, reused ids and rolled back creates are treated as misses
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-17
+ */
+class VariantKeyIndex {
+
+    private static final int initialCapacity = 1 << 16;
+    private static final int maxEntries = 1 << 21;
+    private static long[] keys = new long[initialCapacity];
+    private static long[] nodeIds = new long[initialCapacity];
+    private static int size = 0;
+
+    /**
+     * @return Returns the variant node or null if it does not exist. Must be called within a transaction
+     */
+    static Node findVariantNode(String variantId, GraphDatabaseService graphDb){
+        long variantKey = VariantKey.pack(variantId);
+
+        if (variantKey == VariantKey.unpacked){
+            return graphDb.findNode(Labels.variant, "variantId", variantId);
+        }
+
+        long variantNodeId = get(variantKey);
+
+        if (variantNodeId != -1){
+            try {
+                Node variantNode = graphDb.getNodeById(variantNodeId);
+
+                if (variantNode.hasLabel(Labels.variant) && Long.valueOf(variantKey).equals(variantNode.getProperty("variantKey", null))){
+                    return variantNode;
+                }
+
+            } catch (NotFoundException e) {
+                //deleted
+            }
+        }
+
+        Node variantNode = graphDb.findNode(Labels.variant, "variantKey", variantKey);
+
+        //variant predates packed keys
+        if (variantNode == null){
+            variantNode = graphDb.findNode(Labels.variant, "variantId", variantId);
+        }
+
+        if (variantNode != null && variantNode.hasProperty("variantKey")){
+            put(variantKey, variantNode.getId());
+        }
+
+        return variantNode;
+    }
+
+    static synchronized void put(long variantKey, long variantNodeId){
+        if (size >= maxEntries){
+            clear();
+        } else if (size * 2 >= keys.length){
+            resize(keys.length * 2);
+        }
+
+        int i = getSlot(keys, variantKey);
+
+        if (keys[i] == 0){
+            keys[i] = variantKey;
+            size++;
+        }
+
+        nodeIds[i] = variantNodeId;
+    }
+
+    private static synchronized long get(long variantKey){
+        int i = getSlot(keys, variantKey);
+        return keys[i] == 0 ? -1 : nodeIds[i];
+    }
+
+    /**
+     * @return Returns the slot holding the key or the empty slot where it belongs. Packed keys are never 0
+     */
+    private static int getSlot(long[] keys, long variantKey){
+        int mask = keys.length - 1;
+        int i = (int) ((variantKey * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+        while (keys[i] != 0 && keys[i] != variantKey){
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private static void resize(int capacity){
+        long[] oldKeys = keys;
+        long[] oldNodeIds = nodeIds;
+
+        keys = new long[capacity];
+        nodeIds = new long[capacity];
+
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldKeys[j] != 0){
+                int i = getSlot(keys, oldKeys[j]);
+                keys[i] = oldKeys[j];
+                nodeIds[i] = oldNodeIds[j];
+            }
+        }
+    }
+
+    private static void clear(){
+        keys = new long[initialCapacity];
+        nodeIds = new long[initialCapacity];
+        size = 0;
+    }
+
+}
@@ -1,6 +1,5 @@
 package nhs.genetics.cardiff.variantdatabase.plugin;
 
-import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -10,6 +9,7 @@ import org.neo4j.logging.Log;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -21,6 +21,12 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * A class for filtering variants
@@ -34,12 +40,24 @@ public class Workflow {
 
     private final GraphDatabaseService graphDb;
     private final Log log;
+    private final ResponseFormat responseFormat;
     private static final ObjectMapper objectMapper = new ObjectMapper();
     private final Method[] workflows = this.getClass().getMethods();
+    private static final int workflowThreads = Runtime.getRuntime().availableProcessors();
+    private static final int workflowChunkSize = 500;
+    private static final ExecutorService workflowExecutor = Executors.newFixedThreadPool(workflowThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "variantdatabase-workflow");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
-    public Workflow(@Context GraphDatabaseService graphDb, @Context Log log) {
+    public Workflow(@Context GraphDatabaseService graphDb, @Context Log log, @Context HttpHeaders headers) {
         this.graphDb = graphDb;
         this.log = log;
+        this.responseFormat = ResponseFormat.negotiate(headers);
     }
 
     /**
@@ -53,227 +71,376 @@ public class Workflow {
     }
 
     /**
-     * @return Returns all variants stratified for rareness in variant frequency populations
-     * @param json {sampleId, worklistId, seqId}
+     * @return Returns all variants stratified for rareness in variant frequency populations; as NDJSON one variant per line then a summary line with filters, total and cursor
+     * @param json {sampleId, worklistId, seqId, panelId, parallel, limit, cursor, fields{variant, inheritance}}
      */
     @POST
     @Path("/rare")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
     @WorkflowAnnotation(name = "Rare Variant Workflow v1", description = "A workflow to prioritise rare calls")
     public Response rareVariant(final String json) {
 
         try {
+            return filterVariants(objectMapper.readTree(json), VariantFilterPipeline.rare);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
 
+    /**
+     * @return Returns all variants stratified by the filter stages in the request
+     * @param json {sampleId, worklistId, seqId, panelId, parallel, limit, cursor, fields{variant, inheritance}, stages:[{type, key, ...}]}
+     */
+    @POST
+    @Path("/custom")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile, ResponseFormat.applicationNdjson})
+    @WorkflowAnnotation(name = "Custom Variant Workflow v1", description = "A workflow built from filter stages supplied with the request")
+    public Response customVariant(final String json) {
+
+        try {
             JsonNode jsonNode = objectMapper.readTree(json);
+            return filterVariants(jsonNode, VariantFilterPipeline.compile(jsonNode.get("stages")));
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
+
+    }
+
+    /**
+     * @return Returns info about available variant filter workflows
+     */
+    @GET
+    @Path("/info")
+    @Produces({MediaType.APPLICATION_JSON, ResponseFormat.applicationSmile})
+    public Response info() {
+
+        try {
 
             StreamingOutput stream = new StreamingOutput() {
 
                 @Override
                 public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+                    JsonGenerator jg = responseFormat.createJsonGenerator(os);
 
-                    Node datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
-                    int class1Calls = 0, not1KGRareVariants = 0, notExACRareVariants = 0, passVariants = 0, total = 0;
+                    jg.writeStartArray();
 
-                    jg.writeStartObject();
-                    jg.writeArrayFieldStart("variants");
+                    //print method names with get or post annotations
+                    for (Method workflow : workflows){
+                        if (workflow.isAnnotationPresent(WorkflowAnnotation.class) && !workflow.isAnnotationPresent(Deprecated.class)){
+                            jg.writeStartObject();
 
-                    try (Transaction tx = graphDb.beginTx()) {
-                        for (Relationship relationship : datasetNode.getRelationships(Direction.OUTGOING)){
+                            jg.writeStringField("name", workflow.getAnnotation(WorkflowAnnotation.class).name());
+                            jg.writeStringField("description", workflow.getAnnotation(WorkflowAnnotation.class).description());
+                            jg.writeStringField("path", workflow.getAnnotation(javax.ws.rs.Path.class).value());
 
-                            //skip non variant nodes
-                            if (!relationship.isType(Relationships.hasHetVariant) && !relationship.isType(Relationships.hasHomVariant)){
-                                continue;
-                            }
+                            jg.writeEndObject();
+                        }
+                    }
 
-                            Node variantNode = relationship.getEndNode();
+                    jg.writeEndArray();
 
-                            jg.writeStartObject();
+                    jg.flush();
+                    jg.close();
+                }
 
-                            jg.writeObjectFieldStart("variant");
-                            Framework.writeNodeProperties(variantNode.getId(), variantNode.getAllProperties(), variantNode.getLabels(), jg);
-                            jg.writeEndObject();
+            };
 
-                            jg.writeObjectFieldStart("inheritance");
-                            Framework.writeRelationshipProperties(relationship.getId(), relationship.getAllProperties(), relationship.getType().name(), jg);
-                            jg.writeEndObject();
+            return responseFormat.ok(stream).build();
+
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
+                    .build();
+        }
 
-                            jg.writeNumberField("occurrence", Variant.getGlobalVariantOccurrenceQcPass(variantNode, graphDb));
+    }
 
-                            //stratify variants
-                            Node lastActiveEventNode = Event.getLastActiveUserEventNode(variantNode, graphDb);
-                            if (lastActiveEventNode != null && lastActiveEventNode.hasProperty("classification")) {
+    private Response filterVariants(final JsonNode jsonNode, final VariantFilterPipeline pipeline){
+        boolean parallel = jsonNode.has("parallel") && jsonNode.get("parallel").asBoolean();
+        Integer limit = jsonNode.has("limit") ? Integer.valueOf(jsonNode.get("limit").asInt()) : null;
+        long after = Framework.decodeCursor(jsonNode.has("cursor") ? jsonNode.get("cursor").asText() : null, limit);
+        Map<String, String[]> fields = Framework.getFields(jsonNode.get("fields"));
+        final ResponseFormat format = responseFormat.withNdjson();
 
-                                if ((int) lastActiveEventNode.getProperty("classification") == 1){
-                                    jg.writeNumberField("filter", 0);
-                                    class1Calls++;
-                                } else {
-                                    jg.writeNumberField("filter", 3);
-                                    passVariants++;
-                                }
+        //resolved before streaming so an unknown panel is a bad request
+        final long[] panelVariantNodeIds = jsonNode.has("panelId") ? getPanelVariantNodeIds(jsonNode.get("panelId").asText()) : null;
 
-                            } else if (!isExACRareVariant(variantNode, 0.01)) {
-                                jg.writeNumberField("filter", 1);
-                                notExACRareVariants++;
-                            } else if (!is1KGRareVariant(variantNode, 0.01)) {
-                                jg.writeNumberField("filter", 2);
-                                not1KGRareVariants++;
-                            } else {
-                                jg.writeNumberField("filter", 3);
-                                passVariants++;
-                            }
+        StreamingOutput stream = new StreamingOutput() {
 
-                            total++;
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                JsonGenerator jg = format.createJsonGenerator(os);
 
-                            jg.writeEndObject();
+                long startTime = java.lang.System.nanoTime();
+                String[] filterKeys = pipeline.getKeys();
+                int[] filterCounts = new int[filterKeys.length];
+                int total = 0;
+                String nextCursor;
 
+                if (!format.isNdjson()){
+                    jg.writeStartObject();
+                    jg.writeArrayFieldStart("variants");
+                }
+
+                //one read transaction for the request; helpers do not open their own
+                try (Transaction tx = graphDb.beginTx()) {
+                    Node datasetNode = Framework.findDatasetNode(jsonNode.get("sampleId").asText(), jsonNode.get("worklistId").asText(), jsonNode.get("seqId").asText(), graphDb);
+
+                    //only the requested page is evaluated
+                    List<Long> relationshipIds = Framework.getPage(getVariantRelationshipIds(datasetNode, panelVariantNodeIds), after, limit);
+
+                    if (parallel){
+                        writeVariantsParallel(relationshipIds, pipeline, fields, filterCounts, format, jg);
+                    } else {
+
+                        for (Long relationshipId : relationshipIds){
+                            VariantRow variantRow = getVariantRow(graphDb.getRelationshipById(relationshipId), pipeline, fields);
+                            writeVariantRow(variantRow, jg);
+                            format.writeEndRecord(jg);
+                            filterCounts[variantRow.filter]++;
                         }
-                    }
 
-                    jg.writeEndArray();
+                    }
 
-                    //write filters
-                    jg.writeFieldName("filters");
-                    jg.writeStartArray();
+                    nextCursor = Framework.getNextCursor(relationshipIds, limit);
+                }
 
+                //filter totals follow the variant records as a summary record
+                if (format.isNdjson()){
                     jg.writeStartObject();
-                    jg.writeStringField("key", "Class 1");
-                    jg.writeNumberField("y", class1Calls);
-                    jg.writeEndObject();
+                } else {
+                    jg.writeEndArray();
+                }
 
-                    jg.writeStartObject();
-                    jg.writeStringField("key", "ExAC >1% Frequency");
-                    jg.writeNumberField("y", notExACRareVariants);
-                    jg.writeEndObject();
+                //write filters
+                jg.writeFieldName("filters");
+                jg.writeStartArray();
 
+                for (int i = 0; i < filterKeys.length; i++){
                     jg.writeStartObject();
-                    jg.writeStringField("key", "1KG >1% Frequency");
-                    jg.writeNumberField("y", not1KGRareVariants);
+                    jg.writeStringField("key", filterKeys[i]);
+                    jg.writeNumberField("y", filterCounts[i]);
                     jg.writeEndObject();
 
-                    jg.writeStartObject();
-                    jg.writeStringField("key", "Pass");
-                    jg.writeNumberField("y", passVariants);
-                    jg.writeEndObject();
+                    total += filterCounts[i];
+                }
 
-                    jg.writeEndArray();
+                jg.writeEndArray();
 
-                    jg.writeNumberField("total", total);
+                jg.writeNumberField("total", total);
 
-                    jg.writeEndObject();
+                log.info("Workflow evaluated " + total + " variants in " + ((java.lang.System.nanoTime() - startTime) / 1000000) + "ms" + (parallel ? " (parallel)" : ""));
 
-                    jg.flush();
-                    jg.close();
+                if (limit != null){
+                    jg.writeStringField("cursor", nextCursor);
                 }
 
-            };
+                jg.writeEndObject();
+                format.writeEndRecord(jg);
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+                jg.flush();
+                jg.close();
+            }
 
-        } catch (Exception e) {
-            log.error(e.getMessage());
-            return Response
-                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
-                    .build();
-        }
+        };
 
+        return format.ok(stream).build();
     }
 
     /**
-     * @return Returns info about available variant filter workflows
+     * Evaluates dataset variants on the workflow pool. Each worker reads a chunk in its own transaction; chunks are written in submission order
      */
-    @GET
-    @Path("/info")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response info() {
+    private void writeVariantsParallel(List<Long> relationshipIds, VariantFilterPipeline pipeline, Map<String, String[]> fields, int[] filterCounts, ResponseFormat format, JsonGenerator jg) throws IOException {
+        ArrayDeque<Future<VariantChunk>> futures = new ArrayDeque<>();
 
         try {
 
-            StreamingOutput stream = new StreamingOutput() {
+            int next = 0;
 
-                @Override
-                public void write(OutputStream os) throws IOException, WebApplicationException {
-                    JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+            while (next < relationshipIds.size() || !futures.isEmpty()){
 
-                    jg.writeStartArray();
+                //keep a bounded number of chunks in flight
+                while (next < relationshipIds.size() && futures.size() < workflowThreads * 2){
+                    final List<Long> chunkRelationshipIds = relationshipIds.subList(next, Math.min(next + workflowChunkSize, relationshipIds.size()));
 
-                    //print method names with get or post annotations
-                    for (Method workflow : workflows){
-                        if (workflow.isAnnotationPresent(WorkflowAnnotation.class) && !workflow.isAnnotationPresent(Deprecated.class)){
-                            jg.writeStartObject();
+                    futures.add(workflowExecutor.submit(new Callable<VariantChunk>() {
+                        @Override
+                        public VariantChunk call() throws Exception {
+                            VariantChunk variantChunk = new VariantChunk(chunkRelationshipIds.size(), filterCounts.length);
 
-                            jg.writeStringField("name", workflow.getAnnotation(WorkflowAnnotation.class).name());
-                            jg.writeStringField("description", workflow.getAnnotation(WorkflowAnnotation.class).description());
-                            jg.writeStringField("path", workflow.getAnnotation(javax.ws.rs.Path.class).value());
+                            try (Transaction tx = graphDb.beginTx()) {
+                                for (Long relationshipId : chunkRelationshipIds){
+                                    VariantRow variantRow = getVariantRow(graphDb.getRelationshipById(relationshipId), pipeline, fields);
+                                    variantChunk.variantRows.add(variantRow);
+                                    variantChunk.filterCounts[variantRow.filter]++;
+                                }
+                            }
 
-                            jg.writeEndObject();
+                            return variantChunk;
                         }
-                    }
+                    }));
 
-                    jg.writeEndArray();
+                    next += workflowChunkSize;
+                }
 
-                    jg.flush();
-                    jg.close();
+                VariantChunk variantChunk = futures.poll().get();
+
+                for (VariantRow variantRow : variantChunk.variantRows){
+                    writeVariantRow(variantRow, jg);
+                    format.writeEndRecord(jg);
                 }
 
-            };
+                for (int i = 0; i < filterCounts.length; i++){
+                    filterCounts[i] += variantChunk.filterCounts[i];
+                }
 
-            return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+            }
 
-        } catch (Exception e) {
-            log.error(e.getMessage());
-            return Response
-                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity((e.getLocalizedMessage()).getBytes(Charset.forName("UTF-8")))
-                    .build();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            for (Future<VariantChunk> future : futures){
+                future.cancel(true);
+            }
         }
 
     }
 
-    private void filterVariantsByPanel(){
-        //TODO
+    private static ArrayList<Long> getVariantRelationshipIds(Node datasetNode, long[] panelVariantNodeIds){
+        ArrayList<Long> relationshipIds = new ArrayList<>();
+
+        for (Relationship relationship : datasetNode.getRelationships(Direction.OUTGOING, Relationships.hasHetVariant, Relationships.hasHomVariant)){
+
+            //skip variants outside panel
+            if (panelVariantNodeIds != null && Arrays.binarySearch(panelVariantNodeIds, relationship.getEndNode().getId()) < 0){
+                continue;
+            }
+
+            relationshipIds.add(relationship.getId());
+        }
+
+        return relationshipIds;
     }
 
-    private boolean is1KGRareVariant(Node variantNode, double maxAlleleFrequency){
+    private VariantRow getVariantRow(Relationship relationship, VariantFilterPipeline pipeline, Map<String, String[]> fields){
+        Node variantNode = relationship.getEndNode();
+        VariantRow variantRow = new VariantRow(variantNode, relationship, fields);
 
-        //filter variants
-        try (Transaction tx = graphDb.beginTx()) {
+        variantRow.occurrence = Variant.getGlobalVariantOccurrenceQcPass(variantNode, graphDb);
+        variantRow.filter = pipeline.evaluate(variantNode, variantRow.occurrence, graphDb);
 
-            for (Variant.oneKg population : Variant.oneKg.values()) {
+        return variantRow;
+    }
 
-                if (variantNode.hasProperty(population.toString())){
-                    if ((double) variantNode.getProperty(population.toString()) > maxAlleleFrequency){
-                        return false;
-                    }
-                }
+    private static void writeVariantRow(VariantRow variantRow, JsonGenerator jg) throws IOException {
+        jg.writeStartObject();
 
-            }
+        jg.writeObjectFieldStart("variant");
+        Framework.writeNodeProperties(variantRow.variantNodeId, variantRow.variantProperties, variantRow.variantLabels, jg);
+        jg.writeEndObject();
+
+        jg.writeObjectFieldStart("inheritance");
+        Framework.writeRelationshipProperties(variantRow.relationshipId, variantRow.relationshipProperties, variantRow.relationshipType, jg);
+        jg.writeEndObject();
+
+        jg.writeNumberField("occurrence", variantRow.occurrence);
+        jg.writeNumberField("filter", variantRow.filter);
+
+        jg.writeEndObject();
+    }
 
+    /**
+     * Workflow output for one dataset variant, read while the transaction is open so it can be written later
+     */
+    private static class VariantRow {
+        final long variantNodeId;
+        final Map<String, Object> variantProperties;
+        final ArrayList<Label> variantLabels = new ArrayList<>();
+        final long relationshipId;
+        final Map<String, Object> relationshipProperties;
+        final String relationshipType;
+        int occurrence;
+        int filter;
+
+        VariantRow(Node variantNode, Relationship relationship, Map<String, String[]> fields){
+            this.variantNodeId = variantNode.getId();
+            this.variantProperties = Framework.getProperties(variantNode, fields.get("variant"));
+            this.relationshipId = relationship.getId();
+            this.relationshipProperties = Framework.getProperties(relationship, fields.get("inheritance"));
+            this.relationshipType = relationship.getType().name();
+
+            for (Label label : variantNode.getLabels()){
+                variantLabels.add(label);
+            }
         }
+    }
+
+    private static class VariantChunk {
+        final ArrayList<VariantRow> variantRows;
+        final int[] filterCounts;
 
-        return true;
+        VariantChunk(int size, int filters){
+            this.variantRows = new ArrayList<>(size);
+            this.filterCounts = new int[filters];
+        }
     }
 
-    private boolean isExACRareVariant(Node variantNode, double maxAlleleFrequency){
+    /**
+     * @return Returns sorted node ids of variants annotated against any panel symbol
+     */
+    private long[] getPanelVariantNodeIds(String panelId){
+        ArrayList<long[]> symbolVariantNodeIds = new ArrayList<>();
+        int size = 0, i = 0;
 
-        //filter variants
         try (Transaction tx = graphDb.beginTx()) {
+            Node panelNode = graphDb.findNode(Labels.panel, "panelId", panelId);
 
-            for (Variant.exac population : Variant.exac.values()) {
-
-                if (variantNode.hasProperty(population.toString())){
-                    if ((double) variantNode.getProperty(population.toString()) > maxAlleleFrequency){
-                        return false;
-                    }
-                }
+            if (panelNode == null){
+                throw new IllegalArgumentException("Could not find panel");
+            }
 
+            for (Relationship containsSymbol : panelNode.getRelationships(Direction.OUTGOING, Relationships.containsSymbol)){
+                long[] variantNodeIds = SymbolVariantIndex.getVariantNodeIds(containsSymbol.getEndNode(), graphDb);
+                symbolVariantNodeIds.add(variantNodeIds);
+                size += variantNodeIds.length;
             }
+        }
 
+        long[] panelVariantNodeIds = new long[size];
+
+        for (long[] variantNodeIds : symbolVariantNodeIds){
+            java.lang.System.arraycopy(variantNodeIds, 0, panelVariantNodeIds, i, variantNodeIds.length);
+            i += variantNodeIds.length;
         }
 
-        return true;
+        Arrays.sort(panelVariantNodeIds);
+
+        return panelVariantNodeIds;
     }
 
 }